@@ -0,0 +1,297 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Micro-benchmarks for the hot paths of QueenBattleState, BitboardState and AlphaBetaAgent.
+ * <p>
+ * Modelled on JMH: every benchmark runs in a fresh JVM so the JIT profile of one does not
+ * bias the next, warm-up iterations are followed by measured iterations of fixed length,
+ * results are consumed into a sink so the JIT cannot drop the work, per-operation setup (such as
+ * clearing the search's transposition table) is left out of the timing, and the score is reported
+ * in operations per second with a 99.9% confidence interval. Each operation runs over a set of
+ * stored positions per board size: the opening and the positions a third and two thirds of
+ * the way to final_step, reached by seeded random play.
+ * <p>
+ * Usage, from the directory with the queenbattle_*.gdl files (or through "ant bench"):
+ * <pre>
+ *   java -Dqb.log=none -cp build:build-bench Benchmarks [-filter REGEX] [-warmup N] [-iterations N] [-time MS] [-forks 0|1]
+ *                                                        [-save FILE] [-baseline FILE] [-tolerance PERCENT]
+ * </pre>
+ * -save writes the scores as CSV; -baseline compares against such a file and exits with
+ * status 1 if a benchmark got slower by more than the tolerance (default 10%). -Dqb.log=none keeps
+ * the search benchmarks from timing the agent log; forked JVMs inherit it.
+ */
+public class Benchmarks {
+    private static final long SEED = 20240601L;
+
+    // Student t quantiles for a two-sided 99.9% interval, indexed by degrees of freedom (1..10)
+    private static final double[] T_999 = {0, 636.62, 31.60, 12.92, 8.61, 6.87, 5.96, 5.41, 5.04, 4.78, 4.59};
+
+    // Written after every iteration so the benchmarked work stays observable
+    private static volatile long sink;
+
+    private interface Operation { long run(); }
+
+    private static final class Benchmark {
+        final String name;
+        final Operation op;
+        // Run before every operation and left out of the timing, like a JMH Level.Invocation setup
+        final Runnable setup;
+
+        Benchmark(String name, Operation op) { this(name, null, op); }
+
+        Benchmark(String name, Runnable setup, Operation op) {
+            this.name = name;
+            this.setup = setup;
+            this.op = op;
+        }
+    }
+
+    private static final class Position {
+        final QueenBattleState reference;
+        final BitboardState board;
+        final String toMove;
+        final List<int[]> moves;
+
+        Position(QueenBattleState reference, BitboardState board, String toMove) {
+            this.reference = reference;
+            this.board = board;
+            this.toMove = toMove;
+            this.moves = reference.getLegalMoves(toMove);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String filter = ".*", save = null, baseline = null, run = null;
+        int warmup = 3, iterations = 5, forks = 1;
+        long timeMs = 500;
+        double tolerance = 10;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "-filter": filter = args[i + 1]; break;
+                case "-warmup": warmup = Integer.parseInt(args[i + 1]); break;
+                case "-iterations": iterations = Integer.parseInt(args[i + 1]); break;
+                case "-time": timeMs = Long.parseLong(args[i + 1]); break;
+                case "-forks": forks = Integer.parseInt(args[i + 1]); break;
+                case "-save": save = args[i + 1]; break;
+                case "-baseline": baseline = args[i + 1]; break;
+                case "-tolerance": tolerance = Double.parseDouble(args[i + 1]); break;
+                case "-run": run = args[i + 1]; break;
+                default: throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+        iterations = Math.max(2, Math.min(iterations, T_999.length));
+
+        List<Benchmark> all = benchmarks(MatchRunner.loadBoards(Paths.get("."), null));
+        if (run != null) {
+            // Forked child: run a single benchmark and print its result for the parent
+            for (Benchmark b : all) {
+                if (b.name.equals(run)) {
+                    double[] r = measure(b, warmup, iterations, timeMs);
+                    System.out.println("RESULT " + r[0] + " " + r[1]);
+                }
+            }
+            return;
+        }
+
+        Pattern p = Pattern.compile(filter);
+        Map<String, double[]> results = new LinkedHashMap<>();
+        System.out.println(String.format("%-28s %16s %14s", "Benchmark", "ops/s", "error (99.9%)"));
+        for (Benchmark b : all) {
+            if (!p.matcher(b.name).find()) continue;
+            double[] r = forks > 0 ? fork(b.name, warmup, iterations, timeMs) : measure(b, warmup, iterations, timeMs);
+            results.put(b.name, r);
+            System.out.println(String.format("%-28s %16.1f %14.1f", b.name, r[0], r[1]));
+        }
+
+        if (save != null) {
+            try (PrintWriter out = new PrintWriter(new FileWriter(save))) {
+                for (Map.Entry<String, double[]> e : results.entrySet()) out.println(e.getKey() + "," + e.getValue()[0] + "," + e.getValue()[1]);
+            }
+        }
+        if (baseline != null && regressions(results, baseline, tolerance) > 0) System.exit(1);
+    }
+
+    // Benchmarks per board size, over the stored positions of that board
+    private static List<Benchmark> benchmarks(Map<String, GameDescription> boards) {
+        List<Benchmark> list = new ArrayList<>();
+        for (Map.Entry<String, GameDescription> e : boards.entrySet()) {
+            String board = e.getKey();
+            Position[] positions = positions(e.getValue());
+            int depth = e.getValue().width <= 6 ? 5 : e.getValue().width <= 8 ? 4 : 3;
+            AlphaBetaAgent agent = new AlphaBetaAgent(1, 4, false, false);
+            int[] buf = new int[positions[0].board.maxMoves()];
+
+            list.add(new Benchmark("qbs.getLegalMoves " + board, () -> {
+                long n = 0;
+                for (Position pos : positions) n += pos.reference.getLegalMoves(pos.toMove).size();
+                return n;
+            }));
+            list.add(new Benchmark("qbs.evaluate " + board, () -> {
+                long n = 0;
+                for (Position pos : positions) n += pos.reference.evaluate(pos.toMove);
+                return n;
+            }));
+            list.add(new Benchmark("qbs.bfsTerritory " + board, () -> {
+                long n = 0;
+                for (Position pos : positions) n += pos.reference.calculateBFSTerritory();
+                return n;
+            }));
+            list.add(new Benchmark("qbs.applyRetract " + board, () -> {
+                long n = 0;
+                for (Position pos : positions) {
+                    for (int[] m : pos.moves) {
+                        pos.reference.applyMove(m[0], m[1], m[2], m[3], pos.toMove);
+                        n += pos.reference.getHash();
+                        pos.reference.retractMove(m[0], m[1], m[2], m[3], pos.toMove);
+                    }
+                }
+                return n;
+            }));
+            list.add(new Benchmark("bb.generateMoves " + board, () -> {
+                long n = 0;
+                for (Position pos : positions) n += pos.board.generateMoves(side(pos), buf);
+                return n;
+            }));
+            list.add(new Benchmark("bb.evaluate " + board, () -> {
+                long n = 0;
+                for (Position pos : positions) n += pos.board.evaluate(side(pos));
+                return n;
+            }));
+            list.add(new Benchmark("bb.floodTerritory " + board, () -> {
+                long n = 0;
+                for (Position pos : positions) n += pos.board.calculateFloodTerritory();
+                return n;
+            }));
+            list.add(new Benchmark("bb.bfsTerritory " + board, () -> {
+                long n = 0;
+                for (Position pos : positions) n += pos.board.calculateBFSTerritory();
+                return n;
+            }));
+            list.add(new Benchmark("bb.applyRetract " + board, () -> {
+                long n = 0;
+                for (Position pos : positions) {
+                    int side = side(pos), count = pos.board.generateMoves(side, buf);
+                    for (int i = 0; i < count; i++) {
+                        pos.board.applyMove(buf[i], side);
+                        n += pos.board.getHash();
+                        pos.board.retractMove(buf[i], side);
+                    }
+                }
+                return n;
+            }));
+            // Each operation searches from an empty TT, but wiping it is not part of the search
+            list.add(new Benchmark("search.depth" + depth + " " + board, agent::clearSearch, () -> {
+                long n = 0;
+                for (Position pos : positions) n += agent.searchToDepth(pos.board.cloneState(), depth);
+                return n;
+            }));
+        }
+        return list;
+    }
+
+    private static int side(Position pos) { return pos.toMove.equals("white") ? BitboardState.WHITE : BitboardState.BLACK; }
+
+    // The opening and the positions a third and two thirds of the way to final_step, by seeded random play
+    private static Position[] positions(GameDescription g) {
+        int finalStep = g.finalStep > 0 ? g.finalStep : g.width * g.height;
+        int[] stops = {0, finalStep / 3, 2 * finalStep / 3};
+        Position[] positions = new Position[stops.length];
+        Random random = new Random(SEED + g.width * 100 + g.height);
+        QueenBattleState reference = new QueenBattleState(g.width, g.height, g.whitePositions, g.blackPositions);
+        BitboardState board = new BitboardState(g.width, g.height, g.finalStep, g.whitePositions, g.blackPositions);
+        int step = 0;
+        for (int k = 0; k < stops.length; k++) {
+            for (; step < stops[k]; step++) {
+                String role = step % 2 == 0 ? "white" : "black";
+                List<int[]> moves = reference.getLegalMoves(role);
+                // Stop early rather than reach a finished game
+                if (moves.isEmpty() || reference.getLegalMoves(step % 2 == 0 ? "black" : "white").isEmpty()) break;
+                int[] m = moves.get(random.nextInt(moves.size()));
+                reference.applyMove(m[0], m[1], m[2], m[3], role);
+                board.applyMove(m[0], m[1], m[2], m[3], role);
+                if (board.mobility[BitboardState.WHITE] == 0 || board.mobility[BitboardState.BLACK] == 0) {
+                    reference.retractMove(m[0], m[1], m[2], m[3], role);
+                    board.retractMove(m[0], m[1], m[2], m[3], role);
+                    break;
+                }
+            }
+            positions[k] = new Position(reference.cloneState(), board.cloneState(), step % 2 == 0 ? "white" : "black");
+        }
+        return positions;
+    }
+
+    // Warm-up and measured iterations of timeMs each; returns {mean ops/s, 99.9% error}
+    private static double[] measure(Benchmark b, int warmup, int iterations, long timeMs) {
+        for (int i = 0; i < warmup; i++) iteration(b, timeMs);
+        double[] scores = new double[iterations];
+        for (int i = 0; i < iterations; i++) scores[i] = iteration(b, timeMs);
+        double mean = 0;
+        for (double s : scores) mean += s;
+        mean /= iterations;
+        double var = 0;
+        for (double s : scores) var += (s - mean) * (s - mean);
+        var /= iterations - 1;
+        return new double[] { mean, T_999[iterations - 1] * Math.sqrt(var / iterations) };
+    }
+
+    private static double iteration(Benchmark b, long timeMs) {
+        long ops = 0, acc = 0, setupNanos = 0;
+        long start = System.nanoTime(), end = start + timeMs * 1000000;
+        long now;
+        do {
+            if (b.setup != null) {
+                long t = System.nanoTime();
+                b.setup.run();
+                setupNanos += System.nanoTime() - t;
+            }
+            acc += b.op.run();
+            ops++;
+        } while ((now = System.nanoTime()) - setupNanos < end);
+        sink = acc;
+        return ops * 1e9 / (now - start - setupNanos);
+    }
+
+    // Runs one benchmark in a child JVM with the same class path and JVM options
+    private static double[] fork(String name, int warmup, int iterations, long timeMs) throws IOException, InterruptedException {
+        List<String> cmd = new ArrayList<>();
+        cmd.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        cmd.addAll(java.lang.management.ManagementFactory.getRuntimeMXBean().getInputArguments());
+        cmd.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"), "Benchmarks", "-run", name,
+                "-warmup", "" + warmup, "-iterations", "" + iterations, "-time", "" + timeMs));
+        Process proc = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+        double[] result = null;
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(proc.getInputStream()))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith("RESULT ")) {
+                    String[] t = line.split(" ");
+                    result = new double[] { Double.parseDouble(t[1]), Double.parseDouble(t[2]) };
+                }
+            }
+        }
+        proc.waitFor();
+        if (result == null) throw new IllegalStateException("Forked benchmark " + name + " produced no result");
+        return result;
+    }
+
+    // Prints the benchmarks slower than the baseline by more than the tolerance and returns how many there are
+    private static int regressions(Map<String, double[]> results, String baselineFile, double tolerance) throws IOException {
+        int count = 0;
+        for (String line : Files.readAllLines(Paths.get(baselineFile))) {
+            String[] t = line.split(",");
+            double[] now = results.get(t[0]);
+            if (t.length < 2 || now == null) continue;
+            double before = Double.parseDouble(t[1]);
+            double change = 100 * (now[0] - before) / before;
+            if (change < -tolerance) {
+                System.out.println(String.format("REGRESSION %-28s %+.1f%% (%.1f -> %.1f ops/s)", t[0], change, before, now[0]));
+                count++;
+            }
+        }
+        System.out.println(count == 0 ? "No regressions against " + baselineFile : count + " regressions against " + baselineFile);
+        return count;
+    }
+}
@@ -1,7 +1,9 @@
 
 public interface Agent
 {
-    public void init(String role, int width, int height, int playclock, int[][] white_positions, int[][] black_positions);
+    public void init(String role, int width, int height, int finalStep, int startclock, int playclock, int[][] white_positions, int[][] black_positions);
     public String nextAction(int[] lastmove);
     public void cleanup();
+    // Limits each search to a number of nodes (playouts for MCTS), 0 for none; agents that do not search ignore it
+    public default void setNodeLimit(long nodes) { }
 }
@@ -1,45 +1,117 @@
 import java.util.*;
-import java.io.*;
+import java.util.concurrent.*;
 
 public class AlphaBetaAgent implements Agent {
     private String role;
     private int playclock;
-    private QueenBattleState state; 
-    private long startTime, timeLimit;
-    private int nodes;
+    private BitboardState state;
+    private final TimeManager timeManager = new TimeManager();
+    private int me;
 
-    // Transposition Table (TT) for caching evaluations
-    private static final int TT_SIZE = 1 << 21; 
-    private static final int TT_MASK = TT_SIZE - 1;
-    
-    private long[] ttKeys = new long[TT_SIZE];
-    private int[] ttValues = new int[TT_SIZE];
-    private int[] ttDepths = new int[TT_SIZE];
+    // Lazy SMP: helper threads run the same iterative deepening and share the TT
+    private final int threads;
+    private ExecutorService helperPool;
+    private volatile boolean stop;
+    // Search threads of the current board size, reused by every search and ponder search of a match
+    private Searcher[] searchers;
 
-    private PrintWriter logWriter;
-    private static class TimeoutException extends RuntimeException {}
+    // Pondering: searching the position on the opponent's time to warm the TT
+    private final boolean ponder;
+    private List<Future<?>> ponderTasks;
+
+    private static final int MAX_PLY = 64;
+    // Deepest iteration of iterative deepening, unless a fixed depth is requested
+    private static final int MAX_DEPTH = 49;
+    private int depthLimit = MAX_DEPTH;
+    private static final int INF = 30000, WIN = 10000;
+    // Initial half-width of the aspiration window around the previous iteration's score
+    private static final int ASPIRATION_WINDOW = 60;
+
+    // Move ordering priorities above any history score
+    private static final int HASH_MOVE_SCORE = 1 << 30, KILLER1_SCORE = 1 << 29, KILLER2_SCORE = 1 << 28;
+    private static final int HISTORY_LIMIT = 1 << 20;
+
+    // One in EVAL_SAMPLE evaluations is timed for the metrics, nanoTime is too slow for every call
+    private static final int EVAL_SAMPLE = 64;
+
+    // Node budget per side for each endgame solve
+    private static final int ENDGAME_BUDGET = 4000;
+    // Solved endgame positions are stored at the deepest depth the TT can hold, so every later probe uses them
+    private static final int SOLVED_DEPTH = 255;
+    private static final int UNSOLVED_SLOTS = 1 << 12;
+
+    // Transposition Table (TT) shared by all search threads, sized in megabytes
+    // (default from -Dqb.ttMB, optionally off-heap with -Dqb.ttOffHeap=true)
+    public static final int DEFAULT_TT_MB = Integer.getInteger("qb.ttMB", 32);
+    private final TranspositionTable tt;
+
+    private final SearchLog log = SearchLog.get();
+    // Name of this agent in the log
+    private String logName;
+
+    public AlphaBetaAgent() { this(1); }
+
+    public AlphaBetaAgent(int threads) {
+        this(threads, DEFAULT_TT_MB, Boolean.getBoolean("qb.ttOffHeap"), Boolean.parseBoolean(System.getProperty("qb.ponder", "true")));
+    }
+
+    public AlphaBetaAgent(int threads, int ttMegabytes, boolean ttOffHeap, boolean ponder) {
+        this.threads = Math.max(1, threads);
+        this.tt = TranspositionTable.ofMegabytes(ttMegabytes, ttOffHeap);
+        this.ponder = ponder;
+    }
 
     // Initializes the agent for a new match
-    public void init(String role, int width, int height, int playclock, int[][] whitePos, int[][] blackPos) {
+    public void init(String role, int width, int height, int finalStep, int startclock, int playclock, int[][] whitePos, int[][] blackPos) {
+        long initStart = System.nanoTime();
+        // A START without a STOP or ABORT for the last match: its ponder search must not keep writing the TT
+        stopPondering();
         this.role = role;
         this.playclock = playclock;
-        this.state = new QueenBattleState(width, height, whitePos, blackPos);
-        
+        this.me = role.equals("white") ? BitboardState.WHITE : BitboardState.BLACK;
+        this.state = new BitboardState(width, height, finalStep, whitePos, blackPos);
+        // Pondering runs every search thread in the pool, a normal search all but the calling one
+        if ((threads > 1 || ponder) && helperPool == null) {
+            helperPool = Executors.newFixedThreadPool(ponder ? threads : threads - 1, r -> {
+                Thread t = new Thread(r, "search-helper");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+
+        // Search threads are only built for a new board size; otherwise they just forget the last match
+        ensureSearchers();
+        for (Searcher t : searchers) t.newMatch();
+
         // Clear the TT for the new match
-        Arrays.fill(ttKeys, 0L);
-        
-        try {
-            logWriter = new PrintWriter(new BufferedWriter(new FileWriter("src/agent_log.txt", true)));
-            logToFile("\n--- TOURNAMENT MATCH START: " + role + " (" + width + "x" + height + ") ---");
-        } catch (IOException e) { }
+        tt.clear();
+        // The startclock runs from the START message, so the setup (mostly the TT clear) comes off the budget
+        long setupMs = (System.nanoTime() - initStart) / 1000000;
+
+        logName = "alphabeta-" + role;
+        logEvent("match_start", width + "x" + height + ", final step " + finalStep + ", " + threads + " threads, TT " + (tt.sizeInBytes() >> 20) + " MB cleared in " + setupMs + " ms");
+
+        // Spend the startclock searching the opening position: this fills the TT for the first
+        // moves and gets the search hot paths JIT-compiled before the playclock starts ticking
+        if (startclock > 0) {
+            timeManager.startBudget(Math.min(startclock * 800L, startclock * 1000L - TimeManager.safetyMargin()) - setupMs);
+            tt.newSearch();
+            int side = state.getBurnedCount() % 2 == 0 ? BitboardState.WHITE : BitboardState.BLACK;
+            search(side);
+            logEvent("precomputed", "startclock search done in " + timeManager.elapsedMs() + " ms");
+        }
     }
 
+    public void setNodeLimit(long nodes) { timeManager.setNodeLimit(nodes); }
+
     // Generates the next action based on the opponent's last move
     public String nextAction(int[] lastMove) {
+        // The playclock is already running: joining the ponder threads and applying the last move count against it
+        long moveStart = System.nanoTime();
         if (lastMove != null && lastMove.length >= 4 && lastMove[0] != -1) {
             int sx = lastMove[0], sy = lastMove[1];
-            int pieceAtSource = state.board[sx][sy];
-            
+            int pieceAtSource = state.pieceAt(sx, sy);
+
             if (pieceAtSource == 1) {
                 state.applyMove(lastMove[0], lastMove[1], lastMove[2], lastMove[3], "white");
             } else if (pieceAtSource == 2) {
@@ -51,102 +123,501 @@ public class AlphaBetaAgent implements Agent {
         boolean isWhiteTurn = (burnedCount % 2 == 0);
         boolean myTurn = (role.equals("white") && isWhiteTurn) || (role.equals("black") && !isWhiteTurn);
 
-        if (!myTurn) return "noop";
+        if (!myTurn) {
+            if (ponder && ponderTasks == null) startPondering();
+            return "noop";
+        }
+        boolean pondered = stopPondering();
 
-        QueenBattleState searchState = state.cloneState();
-        startTime = System.currentTimeMillis();
-        // Set time limit with a safety margin to avoid timeouts
-        timeLimit = (playclock * 1000) - 700; 
-        int[] best = null;
-        int depth = 1;
-        
-        Arrays.fill(ttKeys, 0L); 
+        timeManager.startMove(playclock, moveStart);
 
-        try {
-            while (depth < 50) {
-                nodes = 0;
-                int[] currentBest = startNegamax(searchState, depth);
-                if (nodes == 0 && depth > 1) break;
-                if (currentBest != null) best = currentBest;
-                
-                long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
-                logToFile("Depth " + depth + " | NPS: " + (nodes * 1000 / elapsed) + " | Nodes: " + nodes);
-                depth++;
-            }
-        } catch (TimeoutException e) {
-            logToFile("Timeout caught at Depth " + depth + ". Corrupted search board discarded.");
-        }
+        // Entries from previous moves stay valid, the new generation just makes them replaceable first.
+        // A ponder search already started the generation for this position.
+        if (!pondered) tt.newSearch();
+
+        int best = search(me);
 
-        if (best != null) {
-            state.applyMove(best[0], best[1], best[2], best[3], this.role);
-            String moveMsg = "(play " + best[0] + " " + best[1] + " " + best[2] + " " + best[3] + ")";
-            logToFile("Playing: " + moveMsg);
+        if (best != -1) {
+            int from = BitboardState.moveFrom(best), to = BitboardState.moveTo(best);
+            state.applyMove(best, me);
+            String moveMsg = "(play " + state.fileOf(from) + " " + state.rankOf(from) + " " + state.fileOf(to) + " " + state.rankOf(to) + ")";
+            logEvent("move", moveMsg);
+            if (ponder) startPondering();
             return moveMsg;
         }
-        
+
         return "noop";
     }
 
-    // Clones the current state for search to avoid mutating the original
-    private int[] startNegamax(QueenBattleState s, int depth) {
-        List<int[]> moves = s.getLegalMoves(role);
-        if (moves.isEmpty()) return null;
-        
-        moves.sort((a, b) -> Integer.compare(s.quickEvaluateMove(b), s.quickEvaluateMove(a)));
-
-        int[] bestMove = moves.get(0);
-        int alpha = -30000, beta = 30000, bestV = -30000;
-
-        for (int[] m : moves) {
-            checkTime();
-            s.applyMove(m[0], m[1], m[2], m[3], role);
-            int v = -negamax(s, depth - 1, -beta, -alpha, false);
-            s.retractMove(m[0], m[1], m[2], m[3], role);
-            if (v > bestV) { bestV = v; bestMove = m; }
-            alpha = Math.max(alpha, bestV);
-        }
-        return bestMove;
+    // Searches the current position within the time manager's budget and returns the best packed move, or -1
+    private int search(int side) {
+        stop = false;
+
+        // Helpers start on alternating depths so they fill the TT ahead of the main thread
+        for (Searcher t : searchers) t.reset(state, side, false);
+        List<Future<?>> running = new ArrayList<>();
+        for (int i = 1; i < threads; i++) {
+            Searcher helper = searchers[i];
+            running.add(helperPool.submit(helper::iterate));
+        }
+
+        int best = searchers[0].iterate();
+
+        stop = true;
+        for (Future<?> f : running) {
+            try { f.get(); } catch (InterruptedException | ExecutionException e) { }
+        }
+        recordMetrics(searchers);
+        return best;
+    }
+
+    // Builds the search threads unless the current ones are for the board size of the current state
+    private void ensureSearchers() {
+        if (searchers != null && searchers[0].s.width == state.width && searchers[0].s.height == state.height) return;
+        searchers = new Searcher[threads];
+        for (int i = 0; i < threads; i++) searchers[i] = new Searcher(state.cloneState(), i);
+    }
+
+    // Publishes the summed counters of the search threads for the /metrics route
+    private void recordMetrics(Searcher[] searchers) {
+        SearchMetrics.Search m = new SearchMetrics.Search();
+        m.agent = logName != null ? logName : "alphabeta";
+        m.step = state.step;
+        m.threads = searchers.length;
+        m.depth = searchers[0].completedDepth;
+        m.elapsedMs = timeManager.elapsedMs();
+        m.depthNodes = searchers[0].depthNodes;
+        m.depthMs = searchers[0].depthMs;
+        for (Searcher t : searchers) {
+            m.nodes += t.nodes;
+            m.ttProbes += t.ttProbes;
+            m.ttHits += t.ttHits;
+            m.ttCutoffs += t.ttCutoffs;
+            m.ttCollisions += t.ttCollisions;
+            m.evalCalls += t.evalCalls;
+            m.evalNanos += t.evalNanos;
+            for (int i = 0; i < SearchMetrics.CUTOFF_BUCKETS; i++) m.cutoffs[i] += t.cutoffs[i];
+        }
+        SearchMetrics.get().record(m);
+    }
+
+    // Searches a position to a fixed depth without a time limit, e.g. for benchmarks; returns the best packed move.
+    // The TT and the move ordering heuristics are kept, call clearSearch() first for a search from scratch
+    int searchToDepth(BitboardState position, int depth) {
+        state = position;
+        me = position.step % 2 == 0 ? BitboardState.WHITE : BitboardState.BLACK;
+        depthLimit = depth;
+        ensureSearchers();
+        timeManager.startBudget(Long.MAX_VALUE / 4);
+        tt.newSearch();
+        try {
+            return search(me);
+        } finally {
+            depthLimit = MAX_DEPTH;
+        }
+    }
+
+    void clearSearch() {
+        tt.clear();
+        if (searchers != null) for (Searcher t : searchers) t.newMatch();
     }
 
-    // Negamax search with alpha-beta pruning and TT lookup
-    private int negamax(QueenBattleState s, int depth, int alpha, int beta, boolean isMe) {
-        nodes++;
-        if (nodes % 100 == 0) checkTime();
+    // Starts searching the current position for the opponent in the background, without a time limit
+    private void startPondering() {
+        stop = false;
+        tt.newSearch();
+        ponderTasks = new ArrayList<>();
+        for (Searcher t : searchers) t.reset(state, 3 - me, true);
+        for (Searcher t : searchers) ponderTasks.add(helperPool.submit(t::iterate));
+    }
+
+    // Stops the background search, its results stay in the TT for the real search. Returns whether one was running
+    private boolean stopPondering() {
+        if (ponderTasks == null) return false;
+        stop = true;
+        for (Future<?> f : ponderTasks) {
+            try { f.get(); } catch (InterruptedException | ExecutionException e) { }
+        }
+        logEvent("pondered", "depth " + searchers[0].completedDepth + ", " + searchers[0].totalNodes() + " nodes");
+        ponderTasks = null;
+        return true;
+    }
+
+    // One search thread with its own board copy and preallocated per-ply move buffers, reset for every search
+    private class Searcher {
+        private final BitboardState s;
+        private final int id;
+        // Side to move at the root, and whether this is a ponder search without a time limit
+        private int rootSide;
+        private boolean pondering;
+        private final int[][] moveStack;
+        private final int[][] scoreStack;
+        private final int[] rootScores;
+        // Ordering heuristics: two killer moves per ply and a history table indexed by the packed (from, to) move
+        private final int[][] killers = new int[MAX_PLY][2];
+        private final int[] history = new int[1 << 14];
+        private final EndgameSolver endgame;
+        // Hashes of separated positions the endgame solver could not decide within its budget
+        private final long[] unsolved = new long[UNSOLVED_SLOTS];
+        private long nodes;
+        // Best root move and score of the last completed iteration
+        private int pvMove = -1, pvScore;
+        private int rootValue;
+        // Root moves fully searched by the last startNegamax call
+        private int rootCompleted;
+        // Set once the time is up; the search then unwinds by returning immediately
+        private boolean aborted;
+        private int completedDepth;
+        // Counters for the log and /metrics, kept per thread so the search never contends on them:
+        // TT lookups, the ones that found an entry, answered the node, or held a move that is not legal here
+        private long ttProbes, ttHits, ttCutoffs, ttCollisions;
+        // Evaluations and their estimated time (every EVAL_SAMPLE-th call is timed)
+        private long evalCalls, evalNanos;
+        // Beta cutoffs by the index of the move that caused them
+        private final long[] cutoffs = new long[SearchMetrics.CUTOFF_BUCKETS];
+        // Nodes and milliseconds of each completed iteration (main thread only)
+        private final long[] depthNodes = new long[MAX_DEPTH + 1], depthMs = new long[MAX_DEPTH + 1];
+        private final int[] pv = new int[SearchLog.MAX_PV];
+
+        Searcher(BitboardState s, int id) {
+            this.s = s;
+            this.id = id;
+            this.moveStack = new int[MAX_PLY][s.maxMoves()];
+            this.scoreStack = new int[MAX_PLY][s.maxMoves()];
+            this.rootScores = new int[s.maxMoves()];
+            this.endgame = new EndgameSolver(s, ENDGAME_BUDGET);
+        }
+
+        // Prepares a search of position: the counters start over, the history carries over at half weight
+        // and the killers are dropped since their plies no longer line up
+        void reset(BitboardState position, int rootSide, boolean pondering) {
+            s.copyFrom(position);
+            this.rootSide = rootSide;
+            this.pondering = pondering;
+            nodes = 0;
+            pvMove = -1;
+            pvScore = rootValue = rootCompleted = completedDepth = 0;
+            aborted = false;
+            ttProbes = ttHits = ttCutoffs = ttCollisions = 0;
+            evalCalls = evalNanos = 0;
+            Arrays.fill(cutoffs, 0);
+            Arrays.fill(depthNodes, 0);
+            Arrays.fill(depthMs, 0);
+            for (int[] k : killers) k[0] = k[1] = 0;
+            for (int i = 0; i < history.length; i++) history[i] >>= 1;
+        }
+
+        // Forgets the ordering statistics and unsolved endgames of the last match, whose final step may differ
+        void newMatch() {
+            Arrays.fill(history, 0);
+            Arrays.fill(unsolved, 0L);
+        }
+
+        // Iterative deepening until the time runs out, returns the best move of the last
+        // completed depth or a better one found by a partially searched depth
+        int iterate() {
+            int depth = 1 + (id & 1);
+            while (depth <= depthLimit && !aborted) {
+                long before = totalNodes();
+                long iterationStart = timeManager.elapsedMs();
+                int move = aspirationSearch(depth);
+
+                if (aborted) {
+                    if (move != -1 && move != pvMove) {
+                        if (id == 0 && !pondering) logEvent("interrupted", "depth " + depth + " after " + rootCompleted + " root moves, switching to a better move");
+                        pvMove = move;
+                    } else if (id == 0 && !pondering) {
+                        logEvent("interrupted", "depth " + depth + " after " + rootCompleted + " root moves, keeping depth " + (depth - 1) + " move");
+                    }
+                    break;
+                }
+                if (move == -1) break;
+                completedDepth = depth;
+
+                if (id == 0 && !pondering) {
+                    long elapsed = Math.max(1, timeManager.elapsedMs());
+                    long total = totalNodes();
+                    depthNodes[depth] = total - before;
+                    depthMs[depth] = elapsed - iterationStart;
+                    if (log != null) {
+                        int pvLength = principalVariation(depth);
+                        log.iteration(logName, depth, total - before, total * 1000 / elapsed, pvScore, pv, pvLength, s.stride,
+                                elapsed, totalTtProbes(), totalTtHits());
+                    }
+
+                    timeManager.iterationCompleted(depth, pvMove, pvScore, elapsed - iterationStart);
+                    if (timeManager.shouldStop()) {
+                        logEvent("stop", "after depth " + depth + " at " + elapsed + " of " + timeManager.hardLimitMs() + " ms");
+                        break;
+                    }
+                }
+                depth++;
+            }
+            return pvMove;
+        }
+
+        // Searches a narrow window around the previous score, widening it on fail-low/fail-high.
+        // If the time runs out, returns the best fully searched move of this depth (or -1 if none is trustworthy)
+        private int aspirationSearch(int depth) {
+            int alpha = -INF, beta = INF, delta = ASPIRATION_WINDOW;
+            if (pvMove != -1 && Math.abs(pvScore) < WIN) {
+                alpha = pvScore - delta;
+                beta = pvScore + delta;
+            }
+            int failHighMove = -1;
+            while (true) {
+                int move = startNegamax(depth, alpha, beta);
+                if (aborted) {
+                    // The previous best is searched first, so any completed root move that
+                    // replaced it has beaten it at this depth
+                    if (rootCompleted > 0 && rootValue > alpha) return move;
+                    return failHighMove;
+                }
+                if (move == -1) return -1;
+                if (rootValue <= alpha && alpha > -INF) {
+                    alpha = Math.max(-INF, alpha - delta);
+                } else if (rootValue >= beta && beta < INF) {
+                    failHighMove = move;
+                    beta = Math.min(INF, beta + delta);
+                } else {
+                    pvMove = move;
+                    pvScore = rootValue;
+                    tt.store(s.getHash(), pvScore, depth, TranspositionTable.EXACT, pvMove);
+                    return move;
+                }
+                delta *= 4;
+            }
+        }
+
+        private long totalNodes() {
+            long total = 0;
+            for (Searcher t : searchers) total += t.nodes;
+            return total;
+        }
+
+        private long totalTtProbes() {
+            long total = 0;
+            for (Searcher t : searchers) total += t.ttProbes;
+            return total;
+        }
+
+        private long totalTtHits() {
+            long total = 0;
+            for (Searcher t : searchers) total += t.ttHits;
+            return total;
+        }
+
+        // Follows the TT moves from the root, starting with the best move, into pv; returns its length
+        private int principalVariation(int depth) {
+            int length = 0, side = rootSide;
+            int move = pvMove;
+            while (move > 0 && length < Math.min(depth, pv.length)) {
+                int n = s.generateMoves(side, moveStack[length]);
+                boolean legal = false;
+                for (int i = 0; i < n && !legal; i++) legal = moveStack[length][i] == move;
+                if (!legal) break;
+                s.applyMove(move, side);
+                pv[length++] = move;
+                side = 3 - side;
+                move = TranspositionTable.move(tt.probe(s.getHash()));
+            }
+            for (int i = length - 1; i >= 0; i--) {
+                side = 3 - side;
+                s.retractMove(pv[i], side);
+            }
+            return length;
+        }
+
+        // Searches the root moves (previous best first, then the quick heuristic) with PVS,
+        // leaves the score in rootValue and returns the best packed move, or -1
+        private int startNegamax(int depth, int alpha, int beta) {
+            int[] moves = moveStack[0];
+            int n = s.generateMoves(rootSide, moves);
+            if (n == 0) return -1;
+
+            // Insertion sort by quick heuristic, best first
+            for (int i = 0; i < n; i++) {
+                int m = moves[i], sc = s.quickEvaluateMove(m), j = i;
+                while (j > 0 && rootScores[j - 1] < sc) { moves[j] = moves[j - 1]; rootScores[j] = rootScores[j - 1]; j--; }
+                moves[j] = m; rootScores[j] = sc;
+            }
+            // Previous iteration's best first, or the TT move from an earlier search of this position
+            int first = pvMove;
+            if (first == -1) first = TranspositionTable.move(tt.probe(s.getHash()));
+            promote(moves, n, first);
+
+            int bestMove = moves[0];
+            int bestV = -INF;
+            rootCompleted = 0;
+
+            for (int i = 0; i < n; i++) {
+                int m = moves[i];
+                if (checkTime()) break;
+                s.applyMove(m, rootSide);
+                int v = pvs(i, depth - 1, 1, alpha, beta, false);
+                s.retractMove(m, rootSide);
+                if (aborted) break;
+                rootCompleted++;
+                if (v > bestV) { bestV = v; bestMove = m; }
+                alpha = Math.max(alpha, bestV);
+                if (alpha >= beta) break;
+            }
+            rootValue = bestV;
+            return bestMove;
+        }
+
+        // Negamax search with alpha-beta pruning and TT lookup
+        private int negamax(int depth, int ply, int alpha, int beta, boolean isMe) {
+            nodes++;
+            if ((nodes & 1023) == 0) checkTime();
+            if (aborted) return 0;
+
+            int score;
+            evalCalls++;
+            if ((nodes & (EVAL_SAMPLE - 1)) == 0) {
+                long start = System.nanoTime();
+                score = s.evaluate(rootSide);
+                evalNanos += (System.nanoTime() - start) * EVAL_SAMPLE;
+            } else {
+                score = s.evaluate(rootSide);
+            }
+            if (Math.abs(score) >= WIN) return isMe ? score : -score;
+            // Reaching final_step is a draw, nothing beyond it needs searching
+            if (s.atStepLimit()) return 0;
+
+            int cur = isMe ? rootSide : 3 - rootSide;
+            if ((depth <= 0 || ply >= MAX_PLY) && !s.separated) return isMe ? score : -score;
+
+            long hash = s.getHash();
+            long entry = tt.probe(hash);
+            ttProbes++;
+            int ttMove = 0;
+            if (entry != 0) {
+                ttHits++;
+                ttMove = TranspositionTable.move(entry);
+                if (TranspositionTable.depth(entry) >= depth) {
+                    int v = TranspositionTable.value(entry), bound = TranspositionTable.bound(entry);
+                    if (bound == TranspositionTable.EXACT
+                            || (bound == TranspositionTable.LOWER && v >= beta)
+                            || (bound == TranspositionTable.UPPER && v <= alpha)) {
+                        ttCutoffs++;
+                        return v;
+                    }
+                }
+            }
+
+            // Once the sides are walled off from each other the game is decided by move counts. A solved
+            // position goes into the TT as exact at any depth; one the solver's budget could not decide is
+            // remembered, so transpositions and deeper iterations do not pay for the same solve again
+            if (s.separated) {
+                int slot = (int) hash & (UNSOLVED_SLOTS - 1);
+                if (unsolved[slot] != hash) {
+                    int exact = endgame.evaluate(s, cur);
+                    if (exact != EndgameSolver.UNKNOWN) {
+                        tt.store(hash, exact, SOLVED_DEPTH, TranspositionTable.EXACT, 0);
+                        return exact;
+                    }
+                    unsolved[slot] = hash;
+                }
+            }
+            if (depth <= 0 || ply >= MAX_PLY) return isMe ? score : -score;
+
+            int alphaOrig = alpha;
+            int bestV = -INF, bestMove = 0;
+            int[] moves = moveStack[ply];
+            int n = s.generateMoves(cur, moves);
+            if (n == 0) return isMe ? -WIN : WIN;
 
-        int score = s.evaluate(role);
-        if (Math.abs(score) >= 10000 || depth <= 0) return isMe ? score : -score;
+            // Order: hash move, killers, then history; moves are picked lazily so cutoffs skip the sorting
+            int[] scores = scoreStack[ply];
+            int k1 = killers[ply][0], k2 = killers[ply][1];
+            boolean ttMoveFound = false;
+            for (int i = 0; i < n; i++) {
+                int m = moves[i];
+                if (m == ttMove) ttMoveFound = true;
+                scores[i] = m == ttMove ? HASH_MOVE_SCORE : m == k1 ? KILLER1_SCORE : m == k2 ? KILLER2_SCORE : history[m];
+            }
+            // A stored move that is illegal here means the entry belongs to another position
+            if (ttMove != 0 && !ttMoveFound) ttCollisions++;
+
+            for (int i = 0; i < n; i++) {
+                int m = pickNext(moves, scores, i, n);
+                s.applyMove(m, cur);
+                int v = pvs(i, depth - 1, ply + 1, alpha, beta, !isMe);
+                s.retractMove(m, cur);
+                // An interrupted subtree's score is meaningless and must not reach the TT
+                if (aborted) return 0;
+                if (v > bestV) { bestV = v; bestMove = m; }
+                alpha = Math.max(alpha, bestV);
+                if (alpha >= beta) {
+                    recordCutoff(m, depth, ply);
+                    cutoffs[Math.min(i, SearchMetrics.CUTOFF_BUCKETS - 1)]++;
+                    break;
+                }
+            }
+
+            // Store in TT with the bound type implied by the window
+            int bound = bestV <= alphaOrig ? TranspositionTable.UPPER
+                      : bestV >= beta ? TranspositionTable.LOWER : TranspositionTable.EXACT;
+            tt.store(hash, bestV, depth, bound, bestMove);
 
-        long hash = s.getHash();
-        int ttIndex = (int)(hash & TT_MASK);
-        
-        if (ttKeys[ttIndex] == hash && ttDepths[ttIndex] >= depth) {
-            return ttValues[ttIndex];
+            return bestV;
         }
 
-        int bestV = -30000;
-        String cur = isMe ? role : (role.equals("white") ? "black" : "white");
-        List<int[]> moves = s.getLegalMoves(cur);
-        if (moves.isEmpty()) return isMe ? -10000 : 10000;
+        // Principal variation search of the i-th child: the first move gets the full window,
+        // later ones a null-window scout that is re-searched only if it fails high inside (alpha, beta)
+        private int pvs(int i, int depth, int ply, int alpha, int beta, boolean isMe) {
+            if (i == 0) return -negamax(depth, ply, -beta, -alpha, isMe);
+            int v = -negamax(depth, ply, -alpha - 1, -alpha, isMe);
+            if (v > alpha && v < beta) v = -negamax(depth, ply, -beta, -alpha, isMe);
+            return v;
+        }
 
-        // Move ordering using quick heuristic evaluation
-        for (int[] m : moves) {
-            s.applyMove(m[0], m[1], m[2], m[3], cur);
-            int v = -negamax(s, depth - 1, -beta, -alpha, !isMe);
-            s.retractMove(m[0], m[1], m[2], m[3], cur);
-            bestV = Math.max(v, bestV);
-            alpha = Math.max(alpha, bestV);
-            if (alpha >= beta) break;
+        // Swaps the highest scored move of moves[i..n) into slot i and returns it
+        private int pickNext(int[] moves, int[] scores, int i, int n) {
+            int best = i;
+            for (int j = i + 1; j < n; j++) if (scores[j] > scores[best]) best = j;
+            int m = moves[best];
+            moves[best] = moves[i]; moves[i] = m;
+            int sc = scores[best]; scores[best] = scores[i]; scores[i] = sc;
+            return m;
         }
 
-        // Store in TT
-        ttKeys[ttIndex] = hash;
-        ttValues[ttIndex] = bestV;
-        ttDepths[ttIndex] = depth;
+        // Remembers a move that caused a beta cutoff as killer and in the history table
+        private void recordCutoff(int m, int depth, int ply) {
+            if (killers[ply][0] != m) {
+                killers[ply][1] = killers[ply][0];
+                killers[ply][0] = m;
+            }
+            history[m] += depth * depth;
+            if (history[m] > HISTORY_LIMIT) {
+                for (int i = 0; i < history.length; i++) history[i] >>= 1;
+            }
+        }
+
+        // Flags the search as aborted once the time is up or the main thread has finished
+        private boolean checkTime() {
+            if (stop || (!pondering && (timeManager.hardLimitReached() || timeManager.nodeLimitReached(totalNodes())))) aborted = true;
+            return aborted;
+        }
 
-        return bestV;
+        // Moves the given move (if present) to the front, keeping the order of the others
+        private void promote(int[] moves, int n, int move) {
+            if (move <= 0 || moves[0] == move) return;
+            for (int i = 1; i < n; i++) {
+                if (moves[i] == move) {
+                    System.arraycopy(moves, 0, moves, 1, i);
+                    moves[0] = move;
+                    return;
+                }
+            }
+        }
     }
 
-    private void checkTime() { if (System.currentTimeMillis() - startTime >= timeLimit) throw new TimeoutException(); }
-    private void logToFile(String msg) { if (logWriter != null) { logWriter.println(msg); logWriter.flush(); } }
-    public void cleanup() { if (logWriter != null) logWriter.close(); state = null; }
-}
\ No newline at end of file
+    private void logEvent(String event, String msg) { if (log != null) log.event(logName, event, msg); }
+    public void cleanup() {
+        stopPondering();
+        if (helperPool != null) { helperPool.shutdownNow(); helperPool = null; }
+        state = null;
+    }
+}
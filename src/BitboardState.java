@@ -0,0 +1,461 @@
+import java.util.*;
+
+public class BitboardState {
+    public static final int BURNED = 0, WHITE = 1, BLACK = 2;
+
+    // Queen directions, opposite directions are stored at d ^ 1
+    private static final int[][] DIRS = {{0,1}, {0,-1}, {1,0}, {-1,0}, {1,1}, {-1,-1}, {1,-1}, {-1,1}};
+
+    // Territory evaluation: queue BFS, bit-parallel flood fill, or both with a cross-check
+    public static final int TERRITORY_BFS = 0, TERRITORY_FLOOD = 1, TERRITORY_VERIFY = 2;
+    public static int territoryMode = parseTerritoryMode(System.getProperty("qb.territory", "flood"));
+
+    // Boards up to 10x10 plus one padding column fit into 128 bits
+    private static final int MAX_SQUARES = 128;
+    private static final long[][] zobristTable = new long[MAX_SQUARES][3];
+    // Every move burns a square, so the step number never exceeds the square count
+    private static final long[] stepKeys = new long[MAX_SQUARES + 1];
+
+    public final int width, height, stride, numSquares;
+
+    // Mailbox view indexed by square: 0 empty, 1 white, 2 black, -1 burned
+    public final byte[] cells;
+    // Piece sets as 128-bit (lo, hi) pairs indexed by BURNED/WHITE/BLACK
+    public final long[] lo = new long[3], hi = new long[3];
+    // Playable squares (the padding column is never set)
+    public final long validLo, validHi;
+    // Index shift of one step in each of DIRS
+    private final int[] dirShifts;
+    // rays[sq * 8 + d] lists the squares from sq towards the board edge in direction d
+    public final int[][] rays;
+
+    // Legal move counts per side, kept up to date by applyMove/retractMove
+    public final int[] mobility = new int[3];
+
+    // Empty squares each side can still reach, and whether no square is reachable by both.
+    // Valid after the last territory computation (i.e. after a non-terminal evaluate)
+    public final long[] regionLo = new long[3], regionHi = new long[3];
+    public boolean separated;
+
+    // Moves played so far, and the step at which the game ends in a draw (final_step in the GDL)
+    public int step;
+    public int finalStep = Integer.MAX_VALUE;
+
+    private long currentHash = 0L;
+    public int[] dWhite, dBlack;
+    public int[] qArr;
+
+    static {
+        Random rnd = new Random(42);
+        for (int i = 0; i < MAX_SQUARES; i++)
+            for (int k = 0; k < 3; k++)
+                zobristTable[i][k] = rnd.nextLong();
+        for (int i = 0; i <= MAX_SQUARES; i++) stepKeys[i] = rnd.nextLong();
+    }
+
+    public BitboardState(int w, int h, int[][] whitePos, int[][] blackPos) {
+        if ((w + 1) * h > MAX_SQUARES) throw new IllegalArgumentException("Board too large for bitboards: " + w + "x" + h);
+        this.width = w; this.height = h;
+        this.stride = w + 1;
+        this.numSquares = stride * h;
+        this.cells = new byte[numSquares];
+
+        long vLo = 0L, vHi = 0L;
+        for (int y = 1; y <= h; y++) {
+            for (int x = 1; x <= w; x++) {
+                int sq = square(x, y);
+                if (sq < 64) vLo |= 1L << sq; else vHi |= 1L << (sq - 64);
+            }
+        }
+        this.validLo = vLo; this.validHi = vHi;
+        this.rays = buildRays(w, h);
+        this.dirShifts = new int[8];
+        for (int d = 0; d < 8; d++) dirShifts[d] = DIRS[d][0] + DIRS[d][1] * stride;
+        allocateScratch();
+
+        for (int[] p : whitePos) place(square(p[0], p[1]), WHITE);
+        for (int[] p : blackPos) place(square(p[0], p[1]), BLACK);
+        mobility[WHITE] = countMobility(WHITE);
+        mobility[BLACK] = countMobility(BLACK);
+        currentHash ^= stepKeys[0];
+    }
+
+    public BitboardState(int w, int h, int finalStep, int[][] whitePos, int[][] blackPos) {
+        this(w, h, whitePos, blackPos);
+        setFinalStep(finalStep);
+    }
+
+    // Copy constructor for cloning, shares the immutable ray tables
+    private BitboardState(BitboardState o) {
+        this.width = o.width; this.height = o.height;
+        this.stride = o.stride; this.numSquares = o.numSquares;
+        this.cells = o.cells.clone();
+        System.arraycopy(o.lo, 0, lo, 0, 3);
+        System.arraycopy(o.hi, 0, hi, 0, 3);
+        this.validLo = o.validLo; this.validHi = o.validHi;
+        this.rays = o.rays;
+        this.dirShifts = o.dirShifts;
+        this.currentHash = o.currentHash;
+        this.step = o.step; this.finalStep = o.finalStep;
+        System.arraycopy(o.mobility, 0, mobility, 0, 3);
+        allocateScratch();
+    }
+
+    private static int parseTerritoryMode(String mode) {
+        switch (mode) {
+            case "bfs": return TERRITORY_BFS;
+            case "flood": return TERRITORY_FLOOD;
+            case "verify": return TERRITORY_VERIFY;
+            default: throw new IllegalArgumentException("Unknown territory mode: " + mode);
+        }
+    }
+
+    private void allocateScratch() {
+        this.dWhite = new int[numSquares];
+        this.dBlack = new int[numSquares];
+        this.qArr = new int[numSquares + 10];
+    }
+
+    // Precomputes the squares along every ray from every square
+    private int[][] buildRays(int w, int h) {
+        int[][] r = new int[numSquares * 8][];
+        int[] tmp = new int[Math.max(w, h)];
+        for (int y = 1; y <= h; y++) {
+            for (int x = 1; x <= w; x++) {
+                int sq = square(x, y);
+                for (int d = 0; d < 8; d++) {
+                    int n = 0;
+                    for (int nx = x + DIRS[d][0], ny = y + DIRS[d][1];
+                         nx >= 1 && nx <= w && ny >= 1 && ny <= h;
+                         nx += DIRS[d][0], ny += DIRS[d][1]) {
+                        tmp[n++] = square(nx, ny);
+                    }
+                    r[sq * 8 + d] = Arrays.copyOf(tmp, n);
+                }
+            }
+        }
+        return r;
+    }
+
+    // Sets the draw step limit, a negative value meaning the game has none
+    public void setFinalStep(int finalStep) { this.finalStep = finalStep < 0 ? Integer.MAX_VALUE : finalStep; }
+
+    // Whether the step limit has been reached, which ends the game unless a side is already out of moves
+    public boolean atStepLimit() { return step >= finalStep; }
+
+    public BitboardState cloneState() { return new BitboardState(this); }
+
+    // Copies the position of a board of the same size into this one without allocating, like a fresh clone
+    public void copyFrom(BitboardState o) {
+        if (o.width != width || o.height != height) throw new IllegalArgumentException("Board size differs: " + o.width + "x" + o.height);
+        System.arraycopy(o.cells, 0, cells, 0, cells.length);
+        System.arraycopy(o.lo, 0, lo, 0, 3);
+        System.arraycopy(o.hi, 0, hi, 0, 3);
+        System.arraycopy(o.mobility, 0, mobility, 0, 3);
+        this.currentHash = o.currentHash;
+        this.step = o.step; this.finalStep = o.finalStep;
+        this.separated = false;
+    }
+
+    public int square(int x, int y) { return (x - 1) + (y - 1) * stride; }
+    public int fileOf(int sq) { return sq % stride + 1; }
+    public int rankOf(int sq) { return sq / stride + 1; }
+
+    public int pieceAt(int x, int y) { return cells[square(x, y)]; }
+
+    // Packed moves: source square in the low 7 bits, destination square above it
+    public static int packMove(int from, int to) { return from | (to << 7); }
+    public static int moveFrom(int move) { return move & 0x7F; }
+    public static int moveTo(int move) { return move >>> 7; }
+
+    // Upper bound on the number of legal moves for one side, used to size move buffers
+    public int maxMoves() {
+        int queens = Math.max(Long.bitCount(lo[WHITE]) + Long.bitCount(hi[WHITE]),
+                              Long.bitCount(lo[BLACK]) + Long.bitCount(hi[BLACK]));
+        return Math.max(1, queens * ((width - 1) + (height - 1) + 2 * (Math.min(width, height) - 1)));
+    }
+
+    private void place(int sq, int piece) {
+        cells[sq] = (byte) piece;
+        toggle(sq, piece);
+    }
+
+    private void toggle(int sq, int set) {
+        if (sq < 64) lo[set] ^= 1L << sq; else hi[set] ^= 1L << (sq - 64);
+        currentHash ^= zobristTable[sq][set];
+    }
+
+    // Applies a move to the board and updates the hash
+    public void applyMove(int x1, int y1, int x2, int y2, String role) {
+        applyMove(square(x1, y1), square(x2, y2), role.equals("white") ? WHITE : BLACK);
+    }
+
+    // Retracts a move from the board and updates the hash
+    public void retractMove(int x1, int y1, int x2, int y2, String role) {
+        retractMove(square(x1, y1), square(x2, y2), role.equals("white") ? WHITE : BLACK);
+    }
+
+    public void applyMove(int move, int piece) { applyMove(moveFrom(move), moveTo(move), piece); }
+    public void retractMove(int move, int piece) { retractMove(moveFrom(move), moveTo(move), piece); }
+
+    // The burned source square blocks exactly like the queen did, so only the
+    // moving queen and the queens seeing the destination change mobility
+    public void applyMove(int from, int to, int piece) {
+        mobility[piece] -= queenMobility(from);
+        toggle(from, piece); toggle(from, BURNED);
+        cells[from] = -1;
+        updateLinesThrough(to, -1);
+        toggle(to, piece);
+        cells[to] = (byte) piece;
+        mobility[piece] += queenMobility(to);
+        setStep(step + 1);
+    }
+
+    public void retractMove(int from, int to, int piece) {
+        mobility[piece] -= queenMobility(to);
+        toggle(to, piece);
+        cells[to] = 0;
+        updateLinesThrough(to, 1);
+        toggle(from, BURNED); toggle(from, piece);
+        cells[from] = (byte) piece;
+        mobility[piece] += queenMobility(from);
+        setStep(step - 1);
+    }
+
+    private void setStep(int next) {
+        currentHash ^= stepKeys[step] ^ stepKeys[next];
+        step = next;
+    }
+
+    // Adds sign * (squares gained) to every queen whose rays pass through the empty square sq
+    private void updateLinesThrough(int sq, int sign) {
+        for (int d = 0; d < 8; d++) {
+            int q = -1;
+            for (int n : rays[sq * 8 + d]) {
+                if (cells[n] != 0) { q = n; break; }
+            }
+            if (q == -1 || cells[q] <= 0) continue;
+            int run = 1;
+            for (int n : rays[sq * 8 + (d ^ 1)]) {
+                if (cells[n] != 0) break;
+                run++;
+            }
+            mobility[cells[q]] += sign * run;
+        }
+    }
+
+    public boolean hasLegalMove(int p) { return mobility[p] > 0; }
+
+    public int getBurnedCount() { return Long.bitCount(lo[BURNED]) + Long.bitCount(hi[BURNED]); }
+
+    // Generates all legal moves for the given role as {x1, y1, x2, y2}
+    public List<int[]> getLegalMoves(String role) {
+        List<int[]> moves = new ArrayList<>();
+        int p = role.equals("white") ? WHITE : BLACK;
+        for (int part = 0; part < 2; part++) {
+            long bits = part == 0 ? lo[p] : hi[p];
+            while (bits != 0) {
+                int from = Long.numberOfTrailingZeros(bits) + part * 64;
+                bits &= bits - 1;
+                int fx = fileOf(from), fy = rankOf(from);
+                for (int d = 0; d < 8; d++) {
+                    for (int to : rays[from * 8 + d]) {
+                        if (cells[to] != 0) break;
+                        moves.add(new int[]{fx, fy, fileOf(to), rankOf(to)});
+                    }
+                }
+            }
+        }
+        return moves;
+    }
+
+    // Fills buf with the packed legal moves of a side and returns how many were written
+    public int generateMoves(int p, int[] buf) {
+        int n = 0;
+        for (int part = 0; part < 2; part++) {
+            long bits = part == 0 ? lo[p] : hi[p];
+            while (bits != 0) {
+                int from = Long.numberOfTrailingZeros(bits) + part * 64;
+                bits &= bits - 1;
+                for (int d = 0; d < 8; d++) {
+                    for (int to : rays[from * 8 + d]) {
+                        if (cells[to] != 0) break;
+                        buf[n++] = packMove(from, to);
+                    }
+                }
+            }
+        }
+        return n;
+    }
+
+    // Counts the legal moves of a side from scratch without materializing them
+    public int countMobility(int p) {
+        int count = 0;
+        for (int part = 0; part < 2; part++) {
+            long bits = part == 0 ? lo[p] : hi[p];
+            while (bits != 0) {
+                int from = Long.numberOfTrailingZeros(bits) + part * 64;
+                bits &= bits - 1;
+                count += queenMobility(from);
+            }
+        }
+        return count;
+    }
+
+    // Number of empty squares a queen on sq can reach
+    private int queenMobility(int sq) {
+        int count = 0;
+        for (int d = 0; d < 8; d++) {
+            for (int to : rays[sq * 8 + d]) {
+                if (cells[to] != 0) break;
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // Evaluates the board state using territory control and mobility heuristics
+    public int evaluate(String role) { return evaluate(role.equals("white") ? WHITE : BLACK); }
+
+    public int evaluate(int p) {
+        int wMoves = mobility[WHITE];
+        int bMoves = mobility[BLACK];
+
+        if (wMoves == 0 && bMoves == 0) return 0;
+        if (wMoves == 0) return p == WHITE ? -10000 : 10000;
+        if (bMoves == 0) return p == WHITE ? 10000 : -10000;
+        if (step >= finalStep) return 0;
+
+        int territory = calculateTerritory();
+        int score = ((wMoves - bMoves) * 5) + (territory * 20);
+        return p == WHITE ? score : -score;
+    }
+
+    // Territory balance (positive favours White) using the configured territoryMode
+    public int calculateTerritory() {
+        if (territoryMode == TERRITORY_FLOOD) return calculateFloodTerritory();
+        if (territoryMode == TERRITORY_BFS) return calculateBFSTerritory();
+        int flood = calculateFloodTerritory(), bfs = calculateBFSTerritory();
+        if (flood != bfs) throw new IllegalStateException("Flood fill territory " + flood + " differs from BFS territory " + bfs);
+        return bfs;
+    }
+
+    // Bit-parallel version of calculateBFSTerritory: both sides expand their queen-move
+    // frontiers one distance level at a time and a square belongs to whoever reaches it first
+    public int calculateFloodTerritory() {
+        long eLo = validLo & ~(lo[BURNED] | lo[WHITE] | lo[BLACK]);
+        long eHi = validHi & ~(hi[BURNED] | hi[WHITE] | hi[BLACK]);
+        long fwLo = lo[WHITE], fwHi = hi[WHITE], fbLo = lo[BLACK], fbHi = hi[BLACK];
+        long seenWLo = fwLo, seenWHi = fwHi, seenBLo = fbLo, seenBHi = fbHi;
+        long ownWLo = 0L, ownWHi = 0L, ownBLo = 0L, ownBHi = 0L;
+
+        while ((fwLo | fwHi | fbLo | fbHi) != 0) {
+            queenFill(fwLo, fwHi, eLo, eHi);
+            long nwLo = fillLo & ~seenWLo, nwHi = fillHi & ~seenWHi;
+            queenFill(fbLo, fbHi, eLo, eHi);
+            long nbLo = fillLo & ~seenBLo, nbHi = fillHi & ~seenBHi;
+
+            ownWLo |= nwLo & ~seenBLo & ~nbLo; ownWHi |= nwHi & ~seenBHi & ~nbHi;
+            ownBLo |= nbLo & ~seenWLo & ~nwLo; ownBHi |= nbHi & ~seenWHi & ~nwHi;
+
+            seenWLo |= nwLo; seenWHi |= nwHi; seenBLo |= nbLo; seenBHi |= nbHi;
+            fwLo = nwLo; fwHi = nwHi; fbLo = nbLo; fbHi = nbHi;
+        }
+        setRegions(seenWLo & eLo, seenWHi & eHi, seenBLo & eLo, seenBHi & eHi);
+        return Long.bitCount(ownWLo) + Long.bitCount(ownWHi) - Long.bitCount(ownBLo) - Long.bitCount(ownBHi);
+    }
+
+    private long fillLo, fillHi;
+
+    // Squares one queen move away from the set (fLo, fHi) sliding over empty squares, left in fillLo/fillHi.
+    // Steps off the side of the board land on the padding column, which is never empty.
+    private void queenFill(long fLo, long fHi, long eLo, long eHi) {
+        long rLo = 0L, rHi = 0L;
+        if ((fLo | fHi) != 0) {
+            for (int k : dirShifts) {
+                long gLo = fLo, gHi = fHi;
+                while (true) {
+                    long nLo, nHi;
+                    if (k > 0) { nHi = (gHi << k) | (gLo >>> (64 - k)); nLo = gLo << k; }
+                    else { nLo = (gLo >>> -k) | (gHi << (64 + k)); nHi = gHi >>> -k; }
+                    gLo = nLo & eLo; gHi = nHi & eHi;
+                    if ((gLo | gHi) == 0) break;
+                    rLo |= gLo; rHi |= gHi;
+                }
+            }
+        }
+        fillLo = rLo; fillHi = rHi;
+    }
+
+    // BFS to calculate territory control for both players
+    public int calculateBFSTerritory() {
+        Arrays.fill(dWhite, -1);
+        Arrays.fill(dBlack, -1);
+
+        bfs(dWhite, WHITE);
+        bfs(dBlack, BLACK);
+
+        int territory = 0;
+        long wLo = 0L, wHi = 0L, bLo = 0L, bHi = 0L;
+        for (int sq = 0; sq < numSquares; sq++) {
+            if (cells[sq] == 0 && sq % stride != width) {
+                int dw = dWhite[sq], db = dBlack[sq];
+                if (dw != -1 && (db == -1 || dw < db)) territory++;
+                else if (db != -1 && (dw == -1 || db < dw)) territory--;
+                long bit = 1L << (sq & 63);
+                if (dw != -1) { if (sq < 64) wLo |= bit; else wHi |= bit; }
+                if (db != -1) { if (sq < 64) bLo |= bit; else bHi |= bit; }
+            }
+        }
+        setRegions(wLo, wHi, bLo, bHi);
+        return territory; // Positive means White is winning space
+    }
+
+    private void setRegions(long wLo, long wHi, long bLo, long bHi) {
+        regionLo[WHITE] = wLo; regionHi[WHITE] = wHi;
+        regionLo[BLACK] = bLo; regionHi[BLACK] = bHi;
+        separated = ((wLo & bLo) | (wHi & bHi)) == 0;
+    }
+
+    // BFS over queen moves to fill a distance map
+    private void bfs(int[] dists, int p) {
+        int head = 0, tail = 0;
+        for (int part = 0; part < 2; part++) {
+            long bits = part == 0 ? lo[p] : hi[p];
+            while (bits != 0) {
+                int sq = Long.numberOfTrailingZeros(bits) + part * 64;
+                bits &= bits - 1;
+                dists[sq] = 0;
+                qArr[tail++] = sq;
+            }
+        }
+
+        while (head < tail) {
+            int cur = qArr[head++];
+            int d = dists[cur] + 1;
+            for (int dir = 0; dir < 8; dir++) {
+                for (int n : rays[cur * 8 + dir]) {
+                    if (cells[n] != 0) break; // Queen is blocked
+                    if (dists[n] == -1) {
+                        dists[n] = d;
+                        qArr[tail++] = n;
+                    }
+                }
+            }
+        }
+    }
+
+    // Quick heuristic evaluation for move ordering (closer to center is better)
+    public int quickEvaluateMove(int[] m) {
+        int cx = (width + 1) / 2, cy = (height + 1) / 2;
+        return 20 - Math.max(Math.abs(m[2] - cx), Math.abs(m[3] - cy));
+    }
+
+    public int quickEvaluateMove(int move) {
+        int to = moveTo(move);
+        int cx = (width + 1) / 2, cy = (height + 1) / 2;
+        return 20 - Math.max(Math.abs(fileOf(to) - cx), Math.abs(rankOf(to) - cy));
+    }
+
+    public long getHash() { return currentHash; }
+}
@@ -0,0 +1,107 @@
+/**
+ * Solves QueenBattle endgames once burned squares have separated the two sides.
+ * <p>
+ * After separation neither side can influence the other, so each side's fate only depends
+ * on how many moves it can still make inside its own regions: the side to move wins iff it
+ * can make strictly more moves than the opponent. The maximum move count is found with a
+ * memoized depth-first search over the side's own moves, bounded above by the number of
+ * empty squares in its regions (every move fills one). If the node budget runs out the
+ * search still yields a lower bound, and the result is only reported when the bounds decide it.
+ * <p>
+ * Near the step limit a side only needs to outlast the draw: move counts beyond what fits in
+ * the remaining steps do not change the result, so the search stops counting there.
+ */
+public class EndgameSolver {
+    public static final int WIN = 10000;
+    // Returned by evaluate when the bounds do not decide the game, draws score 0
+    public static final int UNKNOWN = Integer.MIN_VALUE;
+
+    private static final int MEMO_BITS = 16, MEMO_MASK = (1 << MEMO_BITS) - 1;
+
+    // Memo of exact move counts, keyed by the side's queens and its remaining region
+    private final long[] memoKeys = new long[1 << MEMO_BITS];
+    private final int[] memoValues = new int[1 << MEMO_BITS];
+    private final int[][] moveStack;
+    private final int budget;
+    private int nodes;
+    private boolean exhausted;
+
+    // Bounds found by the last solve call
+    public int lowerBound, upperBound;
+
+    public EndgameSolver(BitboardState s, int budget) {
+        this.moveStack = new int[s.numSquares + 1][s.maxMoves()];
+        this.budget = budget;
+    }
+
+    // Exact score for the side to move of a separated position, or UNKNOWN.
+    // Requires s.separated and s.region* from the last evaluate call.
+    public int evaluate(BitboardState s, int side) {
+        int opp = 3 - side;
+        long oLo = s.regionLo[opp], oHi = s.regionHi[opp];
+        // Plies left until the draw; with m moves the side to move is stuck after ply 2m-1, the opponent after ply 2m
+        long steps = (long) s.finalStep - s.step;
+        int cap = (int) Math.min(Integer.MAX_VALUE, steps / 2 + 2);
+        solve(s, side, s.regionLo[side], s.regionHi[side], cap);
+        int myLow = lowerBound, myHigh = upperBound;
+        solve(s, opp, oLo, oHi, cap);
+        if (myLow > upperBound && 2L * upperBound <= steps) return WIN + (myLow - upperBound);
+        if (myHigh <= lowerBound && 2L * myHigh - 1 <= steps) return -(WIN + (lowerBound - myHigh));
+        if (2L * myLow - 1 > steps && 2L * lowerBound > steps) return 0;
+        return UNKNOWN;
+    }
+
+    // Bounds on the number of moves side can make within the empty squares (eLo, eHi), left in lowerBound/upperBound
+    public void solve(BitboardState s, int side, long eLo, long eHi) { solve(s, side, eLo, eHi, Integer.MAX_VALUE); }
+
+    // As above, but stops counting once cap moves are found (lowerBound is then cap)
+    public void solve(BitboardState s, int side, long eLo, long eHi, int cap) {
+        nodes = 0;
+        exhausted = false;
+        int remaining = Long.bitCount(eLo) + Long.bitCount(eHi);
+        int best = longestPath(s, side, eLo, eHi, remaining, Math.min(remaining, cap), 0);
+        lowerBound = best;
+        upperBound = exhausted || best >= cap ? remaining : best;
+    }
+
+    private int longestPath(BitboardState s, int side, long eLo, long eHi, int remaining, int limit, int ply) {
+        if (limit <= 0) return 0;
+        if (++nodes > budget) { exhausted = true; return 0; }
+
+        long key = key(eLo, eHi, s.lo[side], s.hi[side]);
+        int slot = (int) key & MEMO_MASK;
+        if (memoKeys[slot] == key) return memoValues[slot];
+
+        int[] moves = moveStack[ply];
+        int n = s.generateMoves(side, moves);
+        int best = 0;
+        for (int i = 0; i < n && !exhausted; i++) {
+            int m = moves[i], to = BitboardState.moveTo(m);
+            long nLo = to < 64 ? eLo & ~(1L << to) : eLo;
+            long nHi = to < 64 ? eHi : eHi & ~(1L << (to - 64));
+            s.applyMove(m, side);
+            int v = 1 + longestPath(s, side, nLo, nHi, remaining - 1, limit - 1, ply + 1);
+            s.retractMove(m, side);
+            if (v > best) {
+                best = v;
+                if (best >= limit) break; // Every remaining square gets used, or enough to outlast the step limit
+            }
+        }
+
+        // Values under an exhausted budget or cut off at the limit are only lower bounds
+        if (!exhausted && (best < limit || best == remaining)) {
+            memoKeys[slot] = key;
+            memoValues[slot] = best;
+        }
+        return best;
+    }
+
+    private static long key(long eLo, long eHi, long qLo, long qHi) {
+        long h = eLo * 0x9E3779B97F4A7C15L ^ Long.rotateLeft(eHi * 0xC2B2AE3D27D4EB4FL, 17)
+               ^ Long.rotateLeft(qLo * 0x165667B19E3779F9L, 31) ^ Long.rotateLeft(qHi * 0xD6E8FEB86659FD93L, 47);
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,130 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * The facts of a QueenBattle game description the agents need: board size, step limit and
+ * the initial queen positions. Parsed from the rules sent in the START message, or from one
+ * of the queenbattle_*.gdl files.
+ */
+public class GameDescription {
+	// largest step number accepted in a succ fact, far beyond the moves of any board that fits the bitboards
+	private static final int MAX_STEP = 10000;
+
+	public final int width, height;
+	// Step at which the game ends in a draw, -1 if the rules have none
+	public final int finalStep;
+	public final int[][] whitePositions, blackPositions;
+
+	public GameDescription(int width, int height, int finalStep, int[][] whitePositions, int[][] blackPositions) {
+		this.width = width;
+		this.height = height;
+		this.finalStep = finalStep;
+		this.whitePositions = whitePositions;
+		this.blackPositions = blackPositions;
+	}
+
+	/**
+	 * parses the game rules, throws IllegalArgumentException if the board size or a starting position is missing or malformed
+	 */
+	public static GameDescription parse(String rules) {
+		GdlParser parser = new GdlParser(rules);
+		GameDescription game = parse(parser);
+		if (!parser.atEnd()) throw parser.error("unexpected text after the game rules");
+		return game;
+	}
+
+	/**
+	 * reads a game description in one pass: either a list of rules, as in the START message,
+	 * or the rules one after the other up to the end, as in a .gdl file.<br>
+	 * The step limit is the number of steps from the initial step to final_step along the
+	 * succ facts (-1 if the chain never gets there, then the limit never takes effect).
+	 */
+	public static GameDescription parse(GdlParser parser) {
+		int width = -1, height = -1, finalStep = -1, initStep = 0;
+		ArrayList<int[]> white_positions = new ArrayList<>(), black_positions = new ArrayList<>();
+		// successor[n] is the step after n, -1 if there is none
+		int[] successor = new int[0];
+		boolean hasSucc = false;
+
+		int depth = 0;
+		while (depth > 0 || parser.atOpen()) {
+			if (parser.atClose()) {
+				parser.close();
+				depth--;
+				continue;
+			}
+			parser.open();
+			if (parser.atOpen()) {
+				depth++; // the list holding the rules
+				continue;
+			}
+			if (parser.keyword("width")) {
+				width = parser.integer();
+			} else if (parser.keyword("height")) {
+				height = parser.integer();
+			} else if (parser.keyword("final_step")) {
+				finalStep = parser.integer();
+			} else if (parser.keyword("succ") && parser.atInteger()) {
+				int from = parser.integer();
+				if (from > MAX_STEP) throw parser.error("step number " + from + " in succ is larger than " + MAX_STEP);
+				if (!parser.atInteger()) {
+					parser.skipRest();
+					continue;
+				}
+				if (from >= successor.length) {
+					int old = successor.length;
+					successor = Arrays.copyOf(successor, Math.max(from + 1, 2 * old));
+					Arrays.fill(successor, old, successor.length, -1);
+				}
+				successor[from] = parser.integer();
+				hasSucc = true;
+			} else if (parser.keyword("init") && parser.atOpen()) {
+				parser.open();
+				if (parser.keyword("cell")) {
+					int[] pos = new int[] { parser.integer(), parser.integer() };
+					if (parser.keyword("white")) {
+						white_positions.add(pos);
+					} else if (parser.keyword("black")) {
+						black_positions.add(pos);
+					} else {
+						throw parser.error("invalid starting position");
+					}
+				} else if (parser.keyword("step") && parser.atInteger()) {
+					initStep = parser.integer();
+				}
+				parser.skipRest();
+			}
+			parser.skipRest();
+		}
+		if (width < 0) throw new IllegalArgumentException("Board width not found in game rules!");
+		if (height < 0) throw new IllegalArgumentException("Board height not found in game rules!");
+
+		if (finalStep >= 0) {
+			if (!hasSucc) {
+				finalStep -= initStep;
+			} else {
+				int steps = 0;
+				for (int step = initStep; step != finalStep; steps++) {
+					step = step < successor.length && steps < successor.length ? successor[step] : -1;
+					if (step < 0) {
+						steps = -1;
+						break;
+					}
+				}
+				finalStep = steps;
+			}
+		}
+		return new GameDescription(width, height, finalStep, white_positions.toArray(new int[0][0]), black_positions.toArray(new int[0][0]));
+	}
+
+	/**
+	 * reads a .gdl file, the parser skips the ; comments (some files keep commented-out starting positions)
+	 */
+	public static GameDescription fromFile(Path file) throws IOException {
+		return parse(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+	}
+}
@@ -1,20 +1,21 @@
 import java.io.IOException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
-import java.util.Calendar;
+import java.util.Date;
 import java.util.Properties;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.ArrayList;
 
 
 public class GamePlayer extends NanoHTTPD {
 	
 	private Agent agent;
-	private DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+	// Time the agent spent on the current PLAY request, -1 if none is pending
+	private volatile long lastThinkNanos = -1;
+	private DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+	private long timestampSecond = -1;
+	private String timestampPrefix;
 
 	public GamePlayer(int port, Agent agent) throws IOException {
-		super(port);
+		super(port, System.getProperty("qb.http", SERVE_POOL));
 		this.agent = agent;
 	}
 
@@ -28,47 +29,18 @@ public class GamePlayer extends NanoHTTPD {
 		//       - your role is "white",
 		//       - after at most 1800 seconds, you have to return from the commandStart method
 		//       - for each move you have 120 seconds
-		Matcher m=Pattern.compile("\\s*\\(\\s*start\\s+([^\\s]+)\\s+([^\\s]+)(.*)\\s([0-9]+)\\s+([0-9]+)\\s*\\)\\s*\\z", Pattern.DOTALL).matcher(msg);
+		GdlParser parser = new GdlParser(msg);
 		try {
-			String role;
-			int playclock, width, height;
-			ArrayList<int[]> white_positions = new ArrayList<>(), black_positions = new ArrayList<>();
-			if (m.lookingAt()) {
-				role = m.group(2);
-				String gameDescription = m.group(3);
-				playclock = Integer.parseInt(m.group(5));
-				m=Pattern.compile("\\(\\s*width\\s+([0-9]+)\\s*\\)").matcher(gameDescription);
-				if(m.find()){
-					width = Integer.parseInt(m.group(1));
-				} else {
-					throw new Exception("Board width not found in game rules!");
-				}
-				m=Pattern.compile("\\(\\s*height\\s+([0-9]+)\\s*\\)").matcher(gameDescription);
-				if(m.find()){
-					height = Integer.parseInt(m.group(1));
-				} else {
-					throw new Exception("Board height not found in game rules!");
-				}
-				System.out.println("role: " + role + ", board: " + width + "x" + height + ", playclock: " + playclock);
-
-				try {
-					m=Pattern.compile("\\(\\s*init\\s*\\(\\s*cell\\s+(\\S+)\\s+(\\S+)\\s+(\\S+)\\s*\\)\\s*\\)").matcher(gameDescription);
-					while(m.find()) {
-						int[] pos = new int[] { Integer.parseInt(m.group(1)), Integer.parseInt(m.group(2)) };
-						if (m.group(3).equals("white")) {
-							white_positions.add(pos);
-						} else {
-							black_positions.add(pos);
-						}
-					}
-				} catch (NumberFormatException e) {
-					throw new Exception("invalid starting positions", e);
-				}
-
-			} else {
-				throw new Exception("unrecognized message format:" + msg);
-			}
-			agent.init(role, width, height, playclock, white_positions.toArray(new int[0][0]), black_positions.toArray(new int[0][0]));
+			parser.open();
+			parser.atom(); // START
+			parser.skip(); // match id
+			String role = parser.atom().toLowerCase();
+			GameDescription game = GameDescription.parse(parser);
+			int startclock = parser.integer();
+			int playclock = parser.integer();
+			parser.close();
+			System.out.println("role: " + role + ", board: " + game.width + "x" + game.height + ", final step: " + game.finalStep + ", startclock: " + startclock + ", playclock: " + playclock);
+			agent.init(role, game.width, game.height, game.finalStep, startclock, playclock, game.whitePositions, game.blackPositions);
 		} catch(Exception e) {
 			System.err.println("Can not parse start message: " + e);
 			System.exit(-1);
@@ -81,20 +53,35 @@ public class GamePlayer extends NanoHTTPD {
 	 */
 	protected String commandPlay(String msg){
 		// msg="(PLAY <MATCHID> <LASTMOVES>)"
+		// <LASTMOVES> is NIL or one move per role, (PLAY <X1> <Y1> <X2> <Y2>) or NOOP
 		int[] coord = null;
 		try{
-			Matcher m=Pattern.compile("\\(\\s*play\\s+([0-9]+)\\s+([0-9]+)\\s+([0-9]+)\\s+([0-9]+)\\s*\\)", Pattern.DOTALL).matcher(msg);
-			if (m.find()) {
-				coord = new int[4];
-				for (int i = 0; i<4; i++) {
-					coord[i] = Integer.parseInt(m.group(i+1)); 
+			GdlParser parser = new GdlParser(msg);
+			parser.open();
+			parser.atom(); // PLAY
+			parser.skip(); // match id
+			if(parser.atOpen()){
+				parser.open();
+				while(!parser.atClose()){
+					if(!parser.atOpen()){
+						parser.skip();
+						continue;
+					}
+					parser.open();
+					if(parser.keyword("play")){
+						coord = new int[] { parser.integer(), parser.integer(), parser.integer(), parser.integer() };
+					}
+					parser.skipRest();
 				}
 			}
-		}catch(Exception ex){
-			System.err.println("Pattern to detect moves does not match!");
+		}catch(IllegalArgumentException ex){
+			System.err.println("Can not parse the last moves!");
 			ex.printStackTrace();
 		}
-		return agent.nextAction(coord);
+		long start = System.nanoTime();
+		String action = agent.nextAction(coord);
+		lastThinkNanos = System.nanoTime() - start;
+		return action;
 	}
 
 	/**
@@ -103,6 +90,7 @@ public class GamePlayer extends NanoHTTPD {
 	protected void commandStop(String msg){
 		// msg="(STOP <MATCH ID> <JOINT MOVE>)
 		System.out.println("game over");
+		System.out.println("requests: " + getLatencySummary());
 		agent.cleanup();
 	}
 
@@ -112,17 +100,19 @@ public class GamePlayer extends NanoHTTPD {
 	protected void commandAbort(String msg){
 		// msg="(STOP <MATCH ID> <JOINT MOVE>)
 		System.out.println("match aborted");
+		System.out.println("requests: " + getLatencySummary());
 		agent.cleanup();
 	}
 
 	public Response serve( String uri, String method, Properties header, Properties parms, String data )
 	{
+		if(method.equalsIgnoreCase("GET")){
+			return serveMetrics(uri, parms);
+		}
 		try{
 			String response_string=null;
 			if(data!=null){
-				data=data.toLowerCase();
-				System.out.print(dateFormat.format(Calendar.getInstance().getTime()));
-				System.out.println(" Command: " + data);
+				System.out.println(timestamp() + " Command: " + data);
 				String command=getCommand(data);
 				if(command==null){
 					throw(new IllegalArgumentException("Unknown message format"));
@@ -145,8 +135,7 @@ public class GamePlayer extends NanoHTTPD {
 			}else{
 				throw(new IllegalArgumentException("Message is empty!"));
 			}
-			System.out.print(dateFormat.format(Calendar.getInstance().getTime()));
-			System.out.println(" Response: "+response_string);
+			System.out.println(timestamp() + " Response: "+response_string);
 			if(response_string!=null && response_string.equals("")) response_string=null;
 			return new Response( HTTP_OK, "text/acl", response_string );
 		}catch(IllegalArgumentException ex){
@@ -156,18 +145,51 @@ public class GamePlayer extends NanoHTTPD {
 		}
 	}
 
+	/**
+	 * GET /metrics returns the search counters in the Prometheus text format, /metrics.json (or /metrics?format=json) as JSON
+	 */
+	private Response serveMetrics(String uri, Properties parms){
+		if(uri.equals("/metrics.json") || (uri.equals("/metrics") && "json".equals(parms.getProperty("format")))){
+			return new Response(HTTP_OK, "application/json", SearchMetrics.get().toJson());
+		}
+		if(uri.equals("/metrics")){
+			return new Response(HTTP_OK, "text/plain; version=0.0.4", SearchMetrics.get().toPrometheus());
+		}
+		return new Response(HTTP_NOTFOUND, MIME_PLAINTEXT, "Not found: " + uri);
+	}
+
+	/**
+	 * feeds the time a PLAY request spent outside the agent to the time manager's safety margin
+	 */
+	protected void requestServed(String method, String uri, long nanosSinceAccept){
+		long think = lastThinkNanos;
+		// a metrics scrape on another connection must not take the PLAY request's timing
+		if(think >= 0 && method.equalsIgnoreCase("POST")){
+			lastThinkNanos = -1;
+			TimeManager.observeResponseOverhead(Math.max(0, nanosSinceAccept - think) / 1000000);
+		}
+	}
+
 	private String getCommand(String msg){
-		String cmd=null;
-		try{
-			Matcher m=Pattern.compile("\\s*\\(\\s*([^\\s]*)\\s").matcher(msg);
-			if(m.lookingAt()){
-				cmd=m.group(1);
-			}
-		}catch(Exception ex){
-			System.err.println("Pattern to extract command did not match!");
-			ex.printStackTrace();
+		GdlParser parser = new GdlParser(msg);
+		if(!parser.atOpen()){
+			return null;
+		}
+		parser.open();
+		return parser.atOpen() || parser.atClose() ? null : parser.atom().toLowerCase();
+	}
+
+	/**
+	 * local time with milliseconds for the message log, the date part is only formatted once a second
+	 */
+	private synchronized String timestamp(){
+		long now = System.currentTimeMillis();
+		if(now / 1000 != timestampSecond){
+			timestampSecond = now / 1000;
+			timestampPrefix = dateFormat.format(new Date(timestampSecond * 1000)) + ".";
 		}
-		return cmd;
+		int millis = (int) (now % 1000);
+		return timestampPrefix + (millis < 100 ? millis < 10 ? "00" : "0" : "") + millis;
 	}
 
 	public void waitForExit(){
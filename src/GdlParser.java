@@ -0,0 +1,168 @@
+/**
+ * Scanner for the S-expressions of GDL and of the game master's messages. Reads parentheses,
+ * atoms and numbers straight from the message string: keywords are compared ignoring case and
+ * numbers are parsed in place, so a message never has to be lowercased or cut into substrings.
+ * ; comments run to the end of the line and are skipped like whitespace.
+ * Malformed input throws IllegalArgumentException.
+ */
+public class GdlParser {
+	private final String text;
+	private int pos;
+	// the atom scanned last, starting at scannedPos
+	private int scannedPos = -1, scannedEnd;
+
+	public GdlParser(String text) {
+		this.text = text;
+	}
+
+	/**
+	 * skips whitespace and comments, returns the next character or -1 at the end of the text
+	 */
+	private int peek() {
+		int n = text.length();
+		while (pos < n) {
+			char c = text.charAt(pos);
+			if (c == ';') {
+				while (pos < n && text.charAt(pos) != '\n') pos++;
+			} else if (c <= ' ') {
+				pos++;
+			} else {
+				return c;
+			}
+		}
+		return -1;
+	}
+
+	public boolean atEnd() {
+		return peek() < 0;
+	}
+
+	public boolean atOpen() {
+		return peek() == '(';
+	}
+
+	public boolean atClose() {
+		return peek() == ')';
+	}
+
+	public void open() {
+		expect('(');
+	}
+
+	public void close() {
+		expect(')');
+	}
+
+	private void expect(char c) {
+		if (peek() != c) throw error("expected '" + c + "'");
+		pos++;
+	}
+
+	private static boolean isDelimiter(char c) {
+		return c <= ' ' || c == '(' || c == ')' || c == ';';
+	}
+
+	/**
+	 * length of the atom at the current position, 0 if a parenthesis or the end comes next
+	 */
+	private int atomLength() {
+		if (peek() < 0) return 0;
+		// a form is usually tested against several keywords, scan its head only once
+		if (pos != scannedPos) {
+			int end = pos;
+			while (end < text.length() && !isDelimiter(text.charAt(end))) end++;
+			scannedPos = pos;
+			scannedEnd = end;
+		}
+		return scannedEnd - pos;
+	}
+
+	/**
+	 * consumes the next atom if it is word (given in lower case), ignoring case
+	 */
+	public boolean keyword(String word) {
+		int length = atomLength();
+		if (length != word.length()) return false;
+		for (int i = 0; i < length; i++) {
+			// word is lower case, ASCII letters differ from upper case in one bit
+			char c = text.charAt(pos + i);
+			if (c != word.charAt(i) && (c | 0x20) != word.charAt(i)) return false;
+		}
+		pos += length;
+		return true;
+	}
+
+	public String atom() {
+		int length = atomLength();
+		if (length == 0) throw error("expected an atom");
+		pos += length;
+		return text.substring(pos - length, pos);
+	}
+
+	/**
+	 * whether the next atom is a non-negative number
+	 */
+	public boolean atInteger() {
+		int length = atomLength();
+		for (int i = 0; i < length; i++) {
+			char c = text.charAt(pos + i);
+			if (c < '0' || c > '9') return false;
+		}
+		return length > 0;
+	}
+
+	public int integer() {
+		int length = atomLength();
+		if (length == 0 || length > 9) throw error("expected a number");
+		int value = 0;
+		for (int i = 0; i < length; i++) {
+			char c = text.charAt(pos + i);
+			if (c < '0' || c > '9') throw error("expected a number");
+			value = value * 10 + (c - '0');
+		}
+		pos += length;
+		return value;
+	}
+
+	/**
+	 * skips the next expression, an atom or a whole list
+	 */
+	public void skip() {
+		if (!atOpen()) {
+			int length = atomLength();
+			if (length == 0) throw error("expected an expression");
+			pos += length;
+			return;
+		}
+		int depth = 0, n = text.length();
+		for (; pos < n; pos++) {
+			char c = text.charAt(pos);
+			if (c == '(') {
+				depth++;
+			} else if (c == ')') {
+				if (--depth == 0) {
+					pos++;
+					return;
+				}
+			} else if (c == ';') {
+				while (pos + 1 < n && text.charAt(pos + 1) != '\n') pos++;
+			}
+		}
+		throw error("unbalanced parentheses");
+	}
+
+	/**
+	 * skips the remaining expressions of the current list and its closing parenthesis
+	 */
+	public void skipRest() {
+		while (!atClose()) {
+			if (atEnd()) throw error("unbalanced parentheses");
+			skip();
+		}
+		pos++;
+	}
+
+	public IllegalArgumentException error(String problem) {
+		return new IllegalArgumentException(problem + " at position " + pos);
+	}
+}
@@ -0,0 +1,465 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Monte Carlo Tree Search player: UCT selection blended with RAVE (all-moves-as-first)
+ * statistics, random playouts lightly guided by mobility, and the tree kept between moves.
+ * <p>
+ * Nodes live in the flat arrays of a preallocated NodePool, so the search does not allocate
+ * per node. The children of a node occupy a contiguous index range and are created together
+ * once the node has been visited EXPAND_VISITS times. Statistics of a child are from the point
+ * of view of the side that played its move, wins counting in half points so draws stay integral.
+ * When the tree is reused, the subtree under the new root is copied into a second pool, which
+ * drops the unreachable rest of the old tree.
+ * <p>
+ * With several threads the search runs either tree parallel, all threads sharing one tree whose
+ * statistics are updated atomically and which add a virtual loss to the nodes they descend
+ * through so they spread over different lines, or root parallel, each thread growing its own
+ * tree and the root children's visit counts being summed at the deadline.
+ */
+public class MCTSAgent implements Agent {
+    // Nodes per pool (two pools per tree), default from -Dqb.mctsNodes
+    public static final int DEFAULT_NODES = Integer.getInteger("qb.mctsNodes", 1 << 20);
+    // -Dqb.mctsParallel=root selects root parallelism, otherwise threads share one tree
+    public static final boolean DEFAULT_ROOT_PARALLEL = System.getProperty("qb.mctsParallel", "tree").equals("root");
+
+    private static final double EXPLORATION = 0.35;
+    // Real visit count at which RAVE and UCT statistics are weighted about equally
+    private static final double RAVE_EQUIVALENCE = 500;
+    // Value of a child without any real or RAVE visits, above any winrate so every move gets tried
+    private static final double FIRST_PLAY_URGENCY = 1.1;
+    private static final int EXPAND_VISITS = 2;
+    // Fraction of playout moves chosen as the better of two random moves by mobility
+    private static final double GUIDED_RATE = 0.5;
+    // Lost visits a thread adds to each node on its path until it backpropagates, in tree parallel mode
+    private static final int VIRTUAL_LOSS = 3;
+    private static final int UNEXPANDED = -1, EXPANDING = -2;
+
+    private static final VarHandle INTS = MethodHandles.arrayElementVarHandle(int[].class);
+
+    private String role;
+    private int playclock;
+    private BitboardState state;
+    private final TimeManager timeManager = new TimeManager();
+    private int me;
+
+    private final int threads;
+    private final boolean rootParallel;
+    private ExecutorService helperPool;
+    private volatile boolean stop;
+    // One tree shared by all threads, or one per thread with root parallelism
+    private final Tree[] trees;
+
+    private final SearchLog log = SearchLog.get();
+    // Name of this agent in the log
+    private String logName;
+
+    public MCTSAgent() { this(1); }
+
+    public MCTSAgent(int threads) { this(threads, DEFAULT_NODES, DEFAULT_ROOT_PARALLEL); }
+
+    public MCTSAgent(int threads, int nodes, boolean rootParallel) {
+        this.threads = Math.max(1, threads);
+        this.rootParallel = rootParallel && this.threads > 1;
+        this.trees = new Tree[this.rootParallel ? this.threads : 1];
+        for (int i = 0; i < trees.length; i++) trees[i] = new Tree(nodes / trees.length);
+    }
+
+    // Initializes the agent for a new match
+    public void init(String role, int width, int height, int finalStep, int startclock, int playclock, int[][] whitePos, int[][] blackPos) {
+        this.role = role;
+        this.playclock = playclock;
+        this.me = role.equals("white") ? BitboardState.WHITE : BitboardState.BLACK;
+        this.state = new BitboardState(width, height, finalStep, whitePos, blackPos);
+        for (Tree t : trees) t.root = -1;
+        if (threads > 1 && helperPool == null) {
+            helperPool = Executors.newFixedThreadPool(threads - 1, r -> {
+                Thread t = new Thread(r, "mcts-helper");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+
+        logName = "mcts-" + role;
+        logEvent("match_start", width + "x" + height + ", final step " + finalStep + ", " + threads + " threads "
+                + (rootParallel ? "root" : "tree") + " parallel, " + trees[0].pool.capacity() * trees.length + " nodes");
+
+        // The tree built during the startclock is reused for the first moves
+        if (startclock > 0) {
+            timeManager.startBudget(Math.min(startclock * 800L, startclock * 1000L - TimeManager.safetyMargin()));
+            search();
+            logEvent("precomputed", "startclock search done in " + timeManager.elapsedMs() + " ms");
+        }
+    }
+
+    public void setNodeLimit(long nodes) { timeManager.setNodeLimit(nodes); }
+
+    // Generates the next action based on the opponent's last move
+    public String nextAction(int[] lastMove) {
+        // The playclock is already running: advancing the trees past the last move counts against it
+        long moveStart = System.nanoTime();
+        if (lastMove != null && lastMove.length >= 4 && lastMove[0] != -1) {
+            int piece = state.pieceAt(lastMove[0], lastMove[1]);
+            if (piece == BitboardState.WHITE || piece == BitboardState.BLACK) {
+                int move = BitboardState.packMove(state.square(lastMove[0], lastMove[1]), state.square(lastMove[2], lastMove[3]));
+                state.applyMove(move, piece);
+                for (Tree t : trees) t.advance(move);
+            }
+        }
+
+        if (sideToMove(state) != me) return "noop";
+
+        timeManager.startMove(playclock, moveStart);
+        int best = search();
+
+        if (best != -1) {
+            int from = BitboardState.moveFrom(best), to = BitboardState.moveTo(best);
+            state.applyMove(best, me);
+            for (Tree t : trees) t.advance(best);
+            String moveMsg = "(play " + state.fileOf(from) + " " + state.rankOf(from) + " " + state.fileOf(to) + " " + state.rankOf(to) + ")";
+            logEvent("move", moveMsg);
+            return moveMsg;
+        }
+
+        return "noop";
+    }
+
+    // Runs playouts from the current position within the time manager's budget and returns the most visited move, or -1
+    private int search() {
+        stop = false;
+        Worker[] workers = new Worker[threads];
+        for (Tree t : trees) t.prepareRoot();
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Worker(trees[rootParallel ? i : 0], state.cloneState(), rootParallel || threads == 1 ? 0 : VIRTUAL_LOSS);
+        }
+        // Roots are expanded before the helpers start, so every thread sees the same root children
+        for (int i = 0; i < trees.length; i++) {
+            if (!workers[i].expandRoot()) return -1;
+        }
+
+        int reused = rootVisits();
+        List<Future<?>> running = new ArrayList<>();
+        for (int i = 1; i < threads; i++) {
+            Worker helper = workers[i];
+            running.add(helperPool.submit(() -> { while (!stop) helper.iterate(); }));
+        }
+        for (long i = 0; ; i++) {
+            if ((i & 255) == 0 && (timeManager.hardLimitReached() || timeManager.nodeLimitReached(rootVisits() - reused) || decided(reused))) break;
+            workers[0].iterate();
+        }
+        stop = true;
+        for (Future<?> f : running) {
+            try { f.get(); } catch (InterruptedException | ExecutionException e) { }
+        }
+
+        int[] visits = childVisits();
+        int best = 0;
+        for (int k = 1; k < visits.length; k++) {
+            if (visits[k] > visits[best]) best = k;
+        }
+        Tree t = trees[0];
+        int bestNode = t.pool.firstChild[t.root] + best;
+        long playouts = rootVisits() - reused, ms = Math.max(1, timeManager.elapsedMs());
+        if (log != null) {
+            log.event(logName, "playouts", playouts + " playouts, " + (playouts * 1000 / ms) + " playouts/s, reused " + reused
+                    + ", nodes " + t.pool.size() + ", win rate " + String.format("%.3f", t.pool.wins[bestNode] / (2.0 * Math.max(1, t.pool.visits[bestNode]))));
+        }
+        return t.pool.move[bestNode];
+    }
+
+    private int rootVisits() {
+        int sum = 0;
+        for (Tree t : trees) sum += t.pool.visits[t.root];
+        return sum;
+    }
+
+    // Visits of each root child summed over all trees; every tree generated its root children in the same order
+    private int[] childVisits() {
+        int[] visits = new int[trees[0].pool.childCount[trees[0].root]];
+        for (Tree t : trees) {
+            for (int k = 0, first = t.pool.firstChild[t.root]; k < visits.length; k++) visits[k] += t.pool.visits[first + k];
+        }
+        return visits;
+    }
+
+    // Whether the most visited root move can no longer be overtaken in the time left
+    private boolean decided(int startVisits) {
+        long elapsed = timeManager.elapsedMs();
+        int done = rootVisits() - startVisits;
+        if (done == 0 || (timeManager.nodeLimit() == 0 && elapsed < 50)) return false;
+        int first = 0, second = 0;
+        for (int v : childVisits()) {
+            if (v > first) { second = first; first = v; } else if (v > second) second = v;
+        }
+        long remaining = timeManager.nodeLimit() > 0 ? timeManager.nodeLimit() - done : done * (timeManager.hardLimitMs() - elapsed) / elapsed;
+        return first - second > remaining;
+    }
+
+    private static int sideToMove(BitboardState s) { return (s.step & 1) == 0 ? BitboardState.WHITE : BitboardState.BLACK; }
+
+    // Any side without a legal move ends the game, as does reaching final_step
+    private static boolean isTerminal(BitboardState s) {
+        return s.mobility[BitboardState.WHITE] == 0 || s.mobility[BitboardState.BLACK] == 0 || s.atStepLimit();
+    }
+
+    // Half points White scored in a finished game: 2 win, 0 loss, 1 draw
+    private static int whitePoints(BitboardState s) {
+        int w = s.mobility[BitboardState.WHITE], b = s.mobility[BitboardState.BLACK];
+        if (w == 0 && b > 0) return 0;
+        if (b == 0 && w > 0) return 2;
+        return 1;
+    }
+
+    // Flat arrays of node data; node i's children are firstChild[i] .. firstChild[i] + childCount[i] - 1.
+    // Statistics are updated with atomic adds, firstChild is published with release/acquire semantics
+    private static final class NodePool {
+        final int[] move, firstChild, childCount, visits, wins, raveVisits, raveWins;
+        private final AtomicInteger size = new AtomicInteger();
+
+        NodePool(int capacity) {
+            move = new int[capacity];
+            firstChild = new int[capacity];
+            childCount = new int[capacity];
+            visits = new int[capacity];
+            wins = new int[capacity];
+            raveVisits = new int[capacity];
+            raveWins = new int[capacity];
+        }
+
+        int capacity() { return move.length; }
+
+        int size() { return size.get(); }
+
+        void clear() { size.set(0); }
+
+        // Reserves count consecutive nodes and returns the first, or -1 if the pool is full
+        int allocate(int count) {
+            while (true) {
+                int first = size.get();
+                if (first + count > move.length) return -1;
+                if (size.compareAndSet(first, first + count)) return first;
+            }
+        }
+
+        void reset(int i, int m) {
+            move[i] = m;
+            firstChild[i] = UNEXPANDED;
+            childCount[i] = 0;
+            visits[i] = 0; wins[i] = 0;
+            raveVisits[i] = 0; raveWins[i] = 0;
+        }
+
+        // Copies the statistics of node j of another pool, leaving the copy unexpanded
+        void copy(int i, NodePool o, int j) {
+            move[i] = o.move[j];
+            firstChild[i] = UNEXPANDED;
+            childCount[i] = o.childCount[j];
+            visits[i] = o.visits[j]; wins[i] = o.wins[j];
+            raveVisits[i] = o.raveVisits[j]; raveWins[i] = o.raveWins[j];
+        }
+    }
+
+    // A search tree with its root and the spare pool it is compacted into between searches
+    private static final class Tree {
+        NodePool pool, spare;
+        // New pool index -> old pool index, scratch for compaction
+        private final int[] origin;
+        int root = -1;
+
+        Tree(int nodes) {
+            pool = new NodePool(nodes);
+            spare = new NodePool(nodes);
+            origin = new int[nodes];
+        }
+
+        // Moves the root to the child for a played move, dropping the tree if it was never expanded
+        void advance(int move) {
+            if (root == -1 || pool.firstChild[root] < 0) { root = -1; return; }
+            for (int c = pool.firstChild[root], end = c + pool.childCount[root]; c < end; c++) {
+                if (pool.move[c] == move) { root = c; return; }
+            }
+            root = -1;
+        }
+
+        // Makes root index 0 of a pool holding only its subtree, copied breadth-first so siblings stay contiguous
+        void prepareRoot() {
+            spare.clear();
+            int r = spare.allocate(1);
+            if (root == -1) {
+                spare.reset(r, 0);
+            } else {
+                spare.copy(r, pool, root);
+                origin[r] = root;
+                for (int i = 0; i < spare.size(); i++) {
+                    int old = origin[i];
+                    if (pool.firstChild[old] < 0) continue;
+                    int n = pool.childCount[old], first = spare.allocate(n);
+                    for (int k = 0; k < n; k++) {
+                        spare.copy(first + k, pool, pool.firstChild[old] + k);
+                        origin[first + k] = pool.firstChild[old] + k;
+                    }
+                    spare.firstChild[i] = first;
+                }
+            }
+            NodePool t = pool; pool = spare; spare = t;
+            root = r;
+        }
+    }
+
+    // One playout thread with its own board copy and scratch buffers
+    private class Worker {
+        private final Tree tree;
+        private final NodePool p;
+        private final BitboardState s;
+        private final int rootStep;
+        private final int virtualLoss;
+        private final SplittableRandom random = new SplittableRandom();
+        private final int[] moves;
+        // Moves of the current iteration, tree moves first, and the tree nodes they lead through
+        private final int[] sequence, path;
+        // Moves played per side in the current iteration: marks[(side - 1) << 14 | move] == stamp
+        private final int[] marks = new int[2 << 14];
+        private int stamp;
+
+        Worker(Tree tree, BitboardState s, int virtualLoss) {
+            this.tree = tree;
+            this.p = tree.pool;
+            this.s = s;
+            this.rootStep = s.step;
+            this.virtualLoss = virtualLoss;
+            this.moves = new int[s.maxMoves()];
+            this.sequence = new int[s.numSquares + 1];
+            this.path = new int[s.numSquares + 2];
+        }
+
+        // Expands the root if needed, returns false if there is nothing to search
+        boolean expandRoot() {
+            if (isTerminal(s)) return false;
+            return p.firstChild[tree.root] >= 0 || expand(tree.root);
+        }
+
+        // Selection, expansion, playout and backpropagation from the root
+        void iterate() {
+            int node = tree.root, depth = 0;
+            path[0] = node;
+            while (!isTerminal(s)) {
+                int first = (int) INTS.getAcquire(p.firstChild, node);
+                if (first < 0) {
+                    if (p.visits[node] < EXPAND_VISITS || !expand(node)) break;
+                    first = p.firstChild[node];
+                }
+                int child = select(node, first);
+                if (virtualLoss != 0) INTS.getAndAdd(p.visits, child, virtualLoss);
+                s.applyMove(p.move[child], sideAt(depth));
+                sequence[depth++] = p.move[child];
+                node = child;
+                path[depth] = node;
+            }
+
+            int len = depth;
+            while (!isTerminal(s)) {
+                int side = sideAt(len);
+                int m = playoutMove(side);
+                s.applyMove(m, side);
+                sequence[len++] = m;
+            }
+            int points = whitePoints(s);
+            for (int i = len - 1; i >= 0; i--) s.retractMove(sequence[i], sideAt(i));
+
+            backpropagate(depth, len, points);
+        }
+
+        private int sideAt(int index) { return ((rootStep + index) & 1) == 0 ? BitboardState.WHITE : BitboardState.BLACK; }
+
+        // Creates the children of a node, unless another thread is already expanding it or the pool is full
+        private boolean expand(int node) {
+            if (!INTS.compareAndSet(p.firstChild, node, UNEXPANDED, EXPANDING)) return false;
+            int n = s.generateMoves(sideToMove(s), moves);
+            int first = n == 0 ? -1 : p.allocate(n);
+            if (first == -1) {
+                INTS.setRelease(p.firstChild, node, UNEXPANDED);
+                return false;
+            }
+            for (int i = 0; i < n; i++) p.reset(first + i, moves[i]);
+            p.childCount[node] = n;
+            INTS.setRelease(p.firstChild, node, first);
+            return true;
+        }
+
+        // UCT on the RAVE-blended value; the RAVE weight fades as real visits accumulate
+        private int select(int node, int first) {
+            int end = first + p.childCount[node];
+            double logN = Math.log(Math.max(1, p.visits[node]));
+            int best = first;
+            double bestValue = Double.NEGATIVE_INFINITY;
+            for (int c = first; c < end; c++) {
+                int n = p.visits[c], rn = p.raveVisits[c];
+                double value;
+                if (n == 0 && rn == 0) {
+                    value = FIRST_PLAY_URGENCY;
+                } else {
+                    double amaf = rn == 0 ? 0 : p.raveWins[c] / (2.0 * rn);
+                    double beta = rn == 0 ? 0 : n == 0 ? 1 : Math.sqrt(RAVE_EQUIVALENCE / (3.0 * n + RAVE_EQUIVALENCE));
+                    double q = n == 0 ? 0 : p.wins[c] / (2.0 * n);
+                    value = (1 - beta) * q + beta * amaf + EXPLORATION * Math.sqrt(logN / (n + 1));
+                }
+                if (value > bestValue) { bestValue = value; best = c; }
+            }
+            return best;
+        }
+
+        // A random move, half of the time replaced by a second random move if that leaves the side more mobile
+        private int playoutMove(int side) {
+            int n = s.generateMoves(side, moves);
+            int m = moves[random.nextInt(n)];
+            if (n > 1 && random.nextDouble() < GUIDED_RATE) {
+                int alt = moves[random.nextInt(n)];
+                if (alt != m && mobilityAfter(alt, side) > mobilityAfter(m, side)) m = alt;
+            }
+            return m;
+        }
+
+        private int mobilityAfter(int m, int side) {
+            s.applyMove(m, side);
+            int v = s.mobility[side] - s.mobility[3 - side];
+            s.retractMove(m, side);
+            return v;
+        }
+
+        // Updates the path's real statistics, replacing its virtual losses, and the RAVE statistics
+        // of every sibling whose move the same side played later in the iteration
+        private void backpropagate(int depth, int len, int whitePoints) {
+            stamp++;
+            for (int i = depth; i < len; i++) mark(sequence[i], sideAt(i));
+            INTS.getAndAdd(p.visits, path[0], 1);
+            for (int d = depth - 1; d >= 0; d--) {
+                int side = sideAt(d), base = (side - 1) << 14;
+                int points = side == BitboardState.WHITE ? whitePoints : 2 - whitePoints;
+                mark(sequence[d], side);
+
+                int child = path[d + 1];
+                INTS.getAndAdd(p.visits, child, 1 - virtualLoss);
+                if (points != 0) INTS.getAndAdd(p.wins, child, points);
+
+                int parent = path[d];
+                for (int c = p.firstChild[parent], end = c + p.childCount[parent]; c < end; c++) {
+                    if (marks[base | p.move[c]] == stamp) {
+                        INTS.getAndAdd(p.raveVisits, c, 1);
+                        if (points != 0) INTS.getAndAdd(p.raveWins, c, points);
+                    }
+                }
+            }
+        }
+
+        private void mark(int move, int side) { marks[(side - 1) << 14 | move] = stamp; }
+    }
+
+    private void logEvent(String event, String msg) { if (log != null) log.event(logName, event, msg); }
+    public void cleanup() {
+        if (helperPool != null) { helperPool.shutdownNow(); helperPool = null; }
+        state = null;
+    }
+}
@@ -3,17 +3,40 @@ public class Main {
 	
 	/**
 	 * starts the game player and waits for messages from the game master <br>
-	 * Command line options: [port]
+	 * Command line options: [port] [search threads] [transposition table MB] <br>
+	 * -Dqb.ttMB sets the default table size, -Dqb.ttOffHeap=true allocates it outside the Java heap,
+	 * -Dqb.ponder=false disables searching on the opponent's time,
+	 * -Dqb.agent=mcts plays with MCTSAgent instead of AlphaBetaAgent (tree size from -Dqb.mctsNodes,
+	 * -Dqb.mctsParallel=root for one tree per thread instead of a shared one),
+	 * -Dqb.http=thread|pool|virtual|nio chooses how connections are served (default pool),
+	 * -Dqb.log sets the agent log file ("none" disables it), rotated at -Dqb.logMaxKB keeping -Dqb.logFiles old files
+	 * The search counters are served at GET /metrics (Prometheus text format) and /metrics.json
 	 */
 	public static void main(String[] args){
 		try{
-			// TODO: put in your agent here
-			Agent agent = new AlphaBetaAgent();
-
 			int port=4001;
 			if(args.length>=1){
 				port=Integer.parseInt(args[0]);
 			}
+			int threads=1;
+			if(args.length>=2){
+				threads=Integer.parseInt(args[1]);
+			}
+
+			int ttMegabytes=AlphaBetaAgent.DEFAULT_TT_MB;
+			if(args.length>=3){
+				ttMegabytes=Integer.parseInt(args[2]);
+			}
+
+			// TODO: put in your agent here
+			Agent agent;
+			if(System.getProperty("qb.agent", "alphabeta").equals("mcts")){
+				agent = new MCTSAgent(threads);
+			}else{
+				agent = new AlphaBetaAgent(threads, ttMegabytes, Boolean.getBoolean("qb.ttOffHeap"),
+						Boolean.parseBoolean(System.getProperty("qb.ponder", "true")));
+			}
+
 			GamePlayer gp=new GamePlayer(port, agent);
 			gp.waitForExit();
 		}catch(Exception ex){
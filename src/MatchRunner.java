@@ -0,0 +1,314 @@
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Plays two agents against each other in-process, calling init/nextAction/cleanup directly
+ * instead of going through the game controller and Main's HTTP player. Games on every board
+ * run concurrently, colours alternate between games, and the running score is reported with
+ * an Elo estimate, the likelihood of superiority and an SPRT log-likelihood ratio.
+ * <p>
+ * Usage: java MatchRunner &lt;agent A&gt; &lt;agent B&gt; [options], run from the directory with the
+ * queenbattle_*.gdl files. Agents: alphabeta[:threads], mcts[:threads], random. Options:
+ * <pre>
+ *   -games N          games per board (default 20)
+ *   -boards 6x6,8x8   boards to play (default every queenbattle_*.gdl file)
+ *   -playclock S      seconds per move (default 1)
+ *   -nodes N          fixed node budget per move (playouts for MCTS) instead of the clock
+ *   -concurrency N    games played at once (default processors / threads per agent)
+ *   -sprt E0,E1       stop once the SPRT for elo0 = E0 against elo1 = E1 decides (alpha = beta = 0.05)
+ * </pre>
+ */
+public class MatchRunner {
+    private static final double SPRT_ALPHA = 0.05, SPRT_BETA = 0.05;
+    // A node-limited game still needs a clock; this one should never run out
+    private static final int NODE_LIMIT_PLAYCLOCK = 3600;
+
+    private final String specA, specB;
+    private final int playclock;
+    private final long nodes;
+
+    public MatchRunner(String specA, String specB, int playclock, long nodes) {
+        this.specA = specA;
+        this.specB = specB;
+        this.playclock = nodes > 0 ? NODE_LIMIT_PLAYCLOCK : playclock;
+        this.nodes = nodes;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("usage: java MatchRunner <agent A> <agent B> [-games N] [-boards 6x6,8x8] [-playclock S] [-nodes N] [-concurrency N] [-sprt E0,E1]");
+            System.exit(1);
+        }
+        int games = 20, playclock = 1, concurrency = 0;
+        long nodes = 0;
+        String boards = null;
+        double[] sprt = null;
+        for (int i = 2; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "-games": games = Integer.parseInt(args[i + 1]); break;
+                case "-boards": boards = args[i + 1]; break;
+                case "-playclock": playclock = Integer.parseInt(args[i + 1]); break;
+                case "-nodes": nodes = Long.parseLong(args[i + 1]); break;
+                case "-concurrency": concurrency = Integer.parseInt(args[i + 1]); break;
+                case "-sprt": {
+                    String[] e = args[i + 1].split(",");
+                    sprt = new double[] { Double.parseDouble(e[0]), Double.parseDouble(e[1]) };
+                    break;
+                }
+                default: throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+        if (concurrency <= 0) {
+            int threads = Math.max(threadsOf(args[0]), threadsOf(args[1]));
+            concurrency = Math.max(1, Runtime.getRuntime().availableProcessors() / threads);
+        }
+
+        // No HTTP front-end in between, so the agents only need the base safety margin
+        TimeManager.observeResponseOverhead(0);
+
+        Map<String, GameDescription> descriptions = loadBoards(Paths.get("."), boards);
+        if (descriptions.isEmpty()) throw new IllegalArgumentException("No queenbattle_*.gdl boards found");
+        new MatchRunner(args[0], args[1], playclock, nodes).run(descriptions, games, concurrency, sprt);
+    }
+
+    // Creates an agent from a spec like alphabeta:4
+    static Agent createAgent(String spec) {
+        String[] parts = spec.split(":");
+        int threads = parts.length > 1 ? Integer.parseInt(parts[1]) : 1;
+        switch (parts[0]) {
+            // Pondering would steal the other agent's CPU time, so it stays off
+            case "alphabeta": return new AlphaBetaAgent(threads, AlphaBetaAgent.DEFAULT_TT_MB, false, false);
+            case "mcts": return new MCTSAgent(threads);
+            case "random": return new RandomAgent();
+            default: throw new IllegalArgumentException("Unknown agent: " + spec);
+        }
+    }
+
+    private static int threadsOf(String spec) {
+        String[] parts = spec.split(":");
+        return parts.length > 1 ? Math.max(1, Integer.parseInt(parts[1])) : 1;
+    }
+
+    // Board name (like 6x6) -> description, in order of board size
+    static Map<String, GameDescription> loadBoards(Path dir, String names) throws IOException {
+        Map<String, GameDescription> all = new TreeMap<>(Comparator.comparingInt((String n) -> Integer.parseInt(n.substring(0, n.indexOf('x')))).thenComparing(n -> n));
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "queenbattle_*.gdl")) {
+            for (Path f : files) {
+                GameDescription g = GameDescription.fromFile(f);
+                all.put(g.width + "x" + g.height, g);
+            }
+        }
+        if (names == null) return all;
+        Map<String, GameDescription> selected = new LinkedHashMap<>();
+        for (String n : names.split(",")) {
+            if (!all.containsKey(n)) throw new IllegalArgumentException("No game description for board " + n);
+            selected.put(n, all.get(n));
+        }
+        return selected;
+    }
+
+    // Outcome of one game from agent A's point of view
+    static final class GameResult {
+        final String board;
+        final boolean aWhite;
+        // Half points for A: 2 win, 1 draw, 0 loss
+        final int points;
+        final int steps;
+        final String reason;
+
+        GameResult(String board, boolean aWhite, int points, int steps, String reason) {
+            this.board = board;
+            this.aWhite = aWhite;
+            this.points = points;
+            this.steps = steps;
+            this.reason = reason;
+        }
+    }
+
+    private void run(Map<String, GameDescription> descriptions, int games, int concurrency, double[] sprt) throws InterruptedException {
+        System.out.println(specA + " vs " + specB + ": " + games + " games on " + descriptions.keySet() + ", "
+                + (nodes > 0 ? nodes + " nodes" : playclock + " s") + " per move, " + concurrency + " at once");
+        ExecutorService pool = Executors.newFixedThreadPool(concurrency, r -> {
+            Thread t = new Thread(r, "match");
+            t.setDaemon(true);
+            return t;
+        });
+        CompletionService<GameResult> results = new ExecutorCompletionService<>(pool);
+        int total = 0;
+        for (int i = 0; i < games; i++) {
+            for (Map.Entry<String, GameDescription> e : descriptions.entrySet()) {
+                String board = e.getKey();
+                GameDescription g = e.getValue();
+                boolean aWhite = i % 2 == 0;
+                results.submit(() -> playGame(board, g, aWhite));
+                total++;
+            }
+        }
+
+        Stats overall = new Stats();
+        Map<String, Stats> byBoard = new LinkedHashMap<>();
+        for (String board : descriptions.keySet()) byBoard.put(board, new Stats());
+        for (int done = 1; done <= total; done++) {
+            GameResult r;
+            try {
+                r = results.take().get();
+            } catch (ExecutionException e) {
+                System.err.println("Game failed: " + e.getCause());
+                e.getCause().printStackTrace();
+                continue;
+            }
+            overall.add(r.points);
+            byBoard.get(r.board).add(r.points);
+            System.out.println(String.format("Game %d/%d %s A %s: %s after %d steps%s | %s", done, total, r.board, r.aWhite ? "white" : "black",
+                    r.points == 2 ? "A wins" : r.points == 0 ? "B wins" : "draw", r.steps, r.reason == null ? "" : " (" + r.reason + ")", overall.summary(sprt)));
+            if (sprt != null) {
+                double llr = overall.llr(sprt[0], sprt[1]);
+                if (llr >= Stats.upperBound() || llr <= Stats.lowerBound()) {
+                    System.out.println("SPRT accepts " + (llr >= Stats.upperBound() ? "H1 (elo >= " + sprt[1] : "H0 (elo <= " + sprt[0]) + ")");
+                    break;
+                }
+            }
+        }
+        pool.shutdownNow();
+
+        System.out.println();
+        for (Map.Entry<String, Stats> e : byBoard.entrySet()) System.out.println(e.getKey() + ": " + e.getValue().summary(null));
+        System.out.println("Total: " + overall.summary(sprt));
+    }
+
+    private static final Pattern PLAY = Pattern.compile("\\(\\s*play\\s+([0-9]+)\\s+([0-9]+)\\s+([0-9]+)\\s+([0-9]+)\\s*\\)");
+
+    // Plays one game like the game controller would, refereeing the moves on a board of its own
+    GameResult playGame(String board, GameDescription g, boolean aWhite) {
+        Agent a = createAgent(specA), b = createAgent(specB);
+        Agent white = aWhite ? a : b, black = aWhite ? b : a;
+        try {
+            white.init("white", g.width, g.height, g.finalStep, 0, playclock, g.whitePositions, g.blackPositions);
+            black.init("black", g.width, g.height, g.finalStep, 0, playclock, g.whitePositions, g.blackPositions);
+            if (nodes > 0) {
+                white.setNodeLimit(nodes);
+                black.setNodeLimit(nodes);
+            }
+
+            BitboardState referee = new BitboardState(g.width, g.height, g.finalStep, g.whitePositions, g.blackPositions);
+            int[] moves = new int[referee.maxMoves()];
+            int[] lastMove = null;
+            while (referee.mobility[BitboardState.WHITE] > 0 && referee.mobility[BitboardState.BLACK] > 0 && !referee.atStepLimit()) {
+                int side = (referee.step & 1) == 0 ? BitboardState.WHITE : BitboardState.BLACK;
+                // Each agent is asked in turn, but only the mover's own answer counts against its clock
+                long start = System.nanoTime();
+                String whiteAction = white.nextAction(lastMove);
+                long whiteMs = (System.nanoTime() - start) / 1000000;
+                start = System.nanoTime();
+                String blackAction = black.nextAction(lastMove);
+                long blackMs = (System.nanoTime() - start) / 1000000;
+
+                String action = side == BitboardState.WHITE ? whiteAction : blackAction;
+                long ms = side == BitboardState.WHITE ? whiteMs : blackMs;
+                boolean moverIsA = (side == BitboardState.WHITE) == aWhite;
+                int forfeit = moverIsA ? 0 : 2;
+                if (nodes == 0 && ms > playclock * 1000L) return new GameResult(board, aWhite, forfeit, referee.step, "time forfeit after " + ms + " ms");
+
+                Matcher m = PLAY.matcher(action);
+                if (!m.find()) return new GameResult(board, aWhite, forfeit, referee.step, "no move: " + action);
+                int[] c = new int[4];
+                for (int i = 0; i < 4; i++) c[i] = Integer.parseInt(m.group(i + 1));
+                if (!isLegal(referee, side, c, moves)) return new GameResult(board, aWhite, forfeit, referee.step, "illegal move " + action);
+                referee.applyMove(c[0], c[1], c[2], c[3], side == BitboardState.WHITE ? "white" : "black");
+                lastMove = c;
+            }
+
+            int w = referee.mobility[BitboardState.WHITE], bl = referee.mobility[BitboardState.BLACK];
+            int whitePoints = w == 0 && bl > 0 ? 0 : bl == 0 && w > 0 ? 2 : 1;
+            return new GameResult(board, aWhite, aWhite ? whitePoints : 2 - whitePoints, referee.step, null);
+        } finally {
+            a.cleanup();
+            b.cleanup();
+        }
+    }
+
+    private static boolean isLegal(BitboardState s, int side, int[] c, int[] moves) {
+        for (int v : c) {
+            if (v < 1) return false;
+        }
+        if (c[0] > s.width || c[2] > s.width || c[1] > s.height || c[3] > s.height) return false;
+        if (s.pieceAt(c[0], c[1]) != side) return false;
+        int move = BitboardState.packMove(s.square(c[0], c[1]), s.square(c[2], c[3]));
+        int n = s.generateMoves(side, moves);
+        for (int i = 0; i < n; i++) {
+            if (moves[i] == move) return true;
+        }
+        return false;
+    }
+
+    // Win/draw/loss counts of agent A with the usual rating statistics
+    static final class Stats {
+        int wins, draws, losses;
+
+        void add(int points) {
+            if (points == 2) wins++; else if (points == 1) draws++; else losses++;
+        }
+
+        int games() { return wins + draws + losses; }
+
+        double score() { return (wins + 0.5 * draws) / games(); }
+
+        // Variance of a single game's score
+        double variance() {
+            double s = score();
+            return (wins * (1 - s) * (1 - s) + draws * (0.5 - s) * (0.5 - s) + losses * s * s) / games();
+        }
+
+        static double elo(double score) { return -400 * Math.log10(1 / score - 1); }
+
+        static double expectedScore(double elo) { return 1 / (1 + Math.pow(10, -elo / 400)); }
+
+        // Half width of the 95% confidence interval of the Elo difference
+        double eloError() {
+            double s = score(), margin = 1.96 * Math.sqrt(variance() / games());
+            double lo = Math.max(1e-6, s - margin), hi = Math.min(1 - 1e-6, s + margin);
+            return (elo(hi) - elo(lo)) / 2;
+        }
+
+        // Likelihood that A is stronger, from the decisive games
+        double los() {
+            if (wins + losses == 0) return 0.5;
+            return 0.5 * (1 + erf((wins - losses) / Math.sqrt(2.0 * (wins + losses))));
+        }
+
+        // Generalized SPRT log-likelihood ratio of elo1 against elo0, in the normal approximation
+        double llr(double elo0, double elo1) {
+            double var = variance();
+            if (games() == 0 || var == 0) return 0;
+            double s0 = expectedScore(elo0), s1 = expectedScore(elo1);
+            return (s1 - s0) * (2 * score() - s0 - s1) * games() / (2 * var);
+        }
+
+        static double lowerBound() { return Math.log(SPRT_BETA / (1 - SPRT_ALPHA)); }
+
+        static double upperBound() { return Math.log((1 - SPRT_BETA) / SPRT_ALPHA); }
+
+        String summary(double[] sprt) {
+            if (games() == 0) return "no games";
+            double s = score();
+            String elo = s <= 0 ? "-inf" : s >= 1 ? "+inf" : String.format("%+.0f +- %.0f", elo(s), eloError());
+            String line = String.format("+%d =%d -%d, score %.1f%%, Elo %s, LOS %.1f%%", wins, draws, losses, 100 * s, elo, 100 * los());
+            if (sprt != null) line += String.format(", LLR %.2f [%.2f, %.2f]", llr(sprt[0], sprt[1]), lowerBound(), upperBound());
+            return line;
+        }
+
+        // Abramowitz and Stegun 7.1.26, accurate to about 1e-7
+        private static double erf(double x) {
+            double t = 1 / (1 + 0.3275911 * Math.abs(x));
+            double y = 1 - t * (0.254829592 + t * (-0.284496736 + t * (1.421413741 + t * (-1.453152027 + t * 1.061405429)))) * Math.exp(-x * x);
+            return x >= 0 ? y : -y;
+        }
+    }
+}
@@ -1,6 +1,10 @@
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
 
 /**
  * A simple, tiny, nicely embeddable HTTP 1.0 server in Java
@@ -78,6 +82,15 @@ public class NanoHTTPD
 		return serveFile( uri, header, new File("."), true );
 	}
 
+	/**
+	 * Called after a response has been flushed, with the time since the
+	 * connection was accepted (for later requests on a kept-alive connection,
+	 * since their request line arrived). Override this to collect latency statistics.
+	 */
+	protected void requestServed( String method, String uri, long nanosSinceAccept )
+	{
+	}
+
 	/**
 	 * HTTP response.
 	 * Return one of these from serve().
@@ -170,33 +183,181 @@ public class NanoHTTPD
 	protected Thread server_thread;
 
 	/**
-	 * Starts a HTTP server to given port.<p>
+	 * Serving modes: a new thread per connection, a bounded pool of
+	 * pre-started threads, a virtual thread per connection (Java 21+,
+	 * falls back to the pool on older runtimes), or a single thread
+	 * multiplexing all connections with a Selector
+	 */
+	public static final String
+		SERVE_THREAD_PER_CONNECTION = "thread",
+		SERVE_POOL = "pool",
+		SERVE_VIRTUAL = "virtual",
+		SERVE_SELECTOR = "nio";
+
+	private static final int POOL_THREADS = 16, POOL_QUEUE = 64;
+
+	/**
+	 * Idle time after which a connection without a request line, or a
+	 * kept-alive one between requests, is closed. Clients are
+	 * told a shorter timeout, so they drop the connection before we do.
+	 * A pooled connection holds one of the few pool threads while it waits,
+	 * so it gives the thread back after a short pause: otherwise a handful
+	 * of idle clients (a metrics scraper, a controller opening a connection
+	 * per message) could leave PLAY requests queued until their clock ran out.
+	 */
+	private static final int KEEP_ALIVE_TIMEOUT_MS = 30000, KEEP_ALIVE_ADVERTISED_S = 20,
+		POOLED_KEEP_ALIVE_TIMEOUT_MS = 300;
+
+	/**
+	 * Starts a HTTP server to given port, with a new thread per connection.<p>
 	 * Throws an IOException if the socket is already in use
 	 */
 	public NanoHTTPD( int port) throws IOException
+	{
+		this( port, SERVE_THREAD_PER_CONNECTION );
+	}
+
+	/**
+	 * Starts a HTTP server to given port, serving connections as given by mode.<p>
+	 * Throws an IOException if the socket is already in use
+	 */
+	public NanoHTTPD( int port, String mode ) throws IOException
 	{
 		myTcpPort = port;
+		sessionExecutor = createSessionExecutor( mode );
+		// The virtual mode falls back to the pool on older runtimes
+		keepAliveTimeoutMs = sessionExecutor instanceof ThreadPoolExecutor ? POOLED_KEEP_ALIVE_TIMEOUT_MS : KEEP_ALIVE_TIMEOUT_MS;
 
-		final ServerSocket ss = new ServerSocket( myTcpPort );
-		server_thread = new Thread( new Runnable()
-			{
-				public void run()
+		if ( mode.equals( SERVE_SELECTOR ))
+			server_thread = new Thread( new SelectorLoop( myTcpPort ), "http-selector" );
+		else
+		{
+			final ServerSocket ss = new ServerSocket( myTcpPort );
+			server_thread = new Thread( new Runnable()
 				{
-					try
+					public void run()
 					{
-						while( true )
-							new HTTPSession( ss.accept());
+						try
+						{
+							while( true )
+								startSession( ss.accept());
+						}
+						catch ( IOException ioe ) {}
+						try {
+							ss.close();
+						} catch ( IOException ioe ) {}
 					}
-					catch ( IOException ioe ) {}
-					try {
-						ss.close();
-					} catch ( IOException ioe ) {}
-				}
-			});
+				});
+		}
 		server_thread.setDaemon( true );
 		server_thread.start();
-		System.out.println("NanoHTTPD is listening on port "+port);
+		System.out.println("NanoHTTPD is listening on port "+port+" ("+mode+" mode)");
+	}
+
+	/**
+	 * Returns the executor for the serving mode, or null if it uses none.
+	 */
+	private static ExecutorService createSessionExecutor( String mode )
+	{
+		if ( mode.equals( SERVE_THREAD_PER_CONNECTION ) || mode.equals( SERVE_SELECTOR ))
+			return null;
+		if ( mode.equals( SERVE_VIRTUAL ))
+		{
+			try
+			{
+				return (ExecutorService) Executors.class.getMethod( "newVirtualThreadPerTaskExecutor" ).invoke( null );
+			}
+			catch ( ReflectiveOperationException e )
+			{
+				System.out.println( "Virtual threads are not available, serving from a thread pool" );
+			}
+		}
+		else if ( !mode.equals( SERVE_POOL ))
+			throw new IllegalArgumentException( "Unknown serving mode: " + mode );
+
+		// Threads are started up front, so no request waits for a thread to be created
+		ThreadPoolExecutor pool = new ThreadPoolExecutor( POOL_THREADS, POOL_THREADS, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>( POOL_QUEUE ), r -> {
+					Thread t = new Thread( r, "http-session" );
+					t.setDaemon( true );
+					return t;
+				});
+		pool.prestartAllCoreThreads();
+		return pool;
+	}
+
+	private void startSession( Socket s )
+	{
+		long acceptNanos = System.nanoTime();
+		try
+		{
+			// Responses are small, send them without waiting for more data
+			s.setTcpNoDelay( true );
+		}
+		catch ( SocketException se ) {}
+		HTTPSession session = new HTTPSession( s, acceptNanos );
+		if ( sessionExecutor == null )
+		{
+			Thread t = new Thread( session );
+			t.setDaemon( true );
+			t.start();
+			return;
+		}
+		try
+		{
+			sessionExecutor.execute( session );
+		}
+		catch ( RejectedExecutionException ree )
+		{
+			try { s.close(); } catch ( IOException ioe ) {}
+		}
+	}
+
+	/**
+	 * Request latency statistics, from accept (or request line) to response flush:
+	 * count, mean, approximate median and 99th percentile, and maximum.
+	 */
+	public String getLatencySummary()
+	{
+		long count = latencyCount.get();
+		if ( count == 0 )
+			return "no requests served";
+		return String.format( "%d requests, mean %.2f ms, p50 < %.2f ms, p99 < %.2f ms, max %.2f ms",
+				count, latencyTotalNanos.get() / 1e6 / count, latencyPercentile( 0.5 ) / 1e3,
+				latencyPercentile( 0.99 ) / 1e3, latencyMaxNanos.get() / 1e6 );
+	}
+
+	private void recordLatency( long nanos )
+	{
+		latencyCount.incrementAndGet();
+		latencyTotalNanos.addAndGet( nanos );
+		latencyMaxNanos.accumulateAndGet( nanos, Math::max );
+		long micros = Math.max( 1, nanos / 1000 );
+		latencyBuckets.incrementAndGet( Math.min( LATENCY_BUCKETS - 1, 64 - Long.numberOfLeadingZeros( micros )));
+	}
+
+	/**
+	 * Upper bound in microseconds of the bucket holding the given fraction of requests
+	 */
+	private long latencyPercentile( double fraction )
+	{
+		long target = (long) Math.ceil( latencyCount.get() * fraction ), seen = 0;
+		for ( int b = 0; b < LATENCY_BUCKETS; b++ )
+		{
+			seen += latencyBuckets.get( b );
+			if ( seen >= target )
+				return 1L << b;
+		}
+		return 1L << ( LATENCY_BUCKETS - 1 );
 	}
+
+	private final ExecutorService sessionExecutor;
+	private final int keepAliveTimeoutMs;
+
+	// Bucket b counts the latencies below 2^b microseconds
+	private static final int LATENCY_BUCKETS = 32;
+	private final AtomicLongArray latencyBuckets = new AtomicLongArray( LATENCY_BUCKETS );
+	private final AtomicLong latencyCount = new AtomicLong(), latencyTotalNanos = new AtomicLong(), latencyMaxNanos = new AtomicLong();
 	
 	/**
 	 * Starts as a standalone file server and waits for Enter.
@@ -242,100 +403,39 @@ public class NanoHTTPD
 	}	
 	
 	/**
-	 * Handles one session, i.e. parses the HTTP request
-	 * and returns the response.
+	 * Handles one session, i.e. parses the HTTP requests of a connection
+	 * and returns the responses. The connection is kept open for further
+	 * requests if the client asks for it (HTTP/1.1 default or Connection: keep-alive).
 	 */
 	private class HTTPSession implements Runnable
 	{
-		public HTTPSession( Socket s )
+		public HTTPSession( Socket s, long acceptNanos )
 		{
+			this.acceptNanos = acceptNanos;
 			mySocket = s;
-			Thread t = new Thread( this );
-			t.setDaemon( true );
-			t.start();
 		}
 
 		public void run()
 		{
 			try
 			{
-				String line;
 				InputStream is = mySocket.getInputStream();
 				if ( is == null) return;
 				BufferedReader in = new BufferedReader( new InputStreamReader( is ));
-
-				// Read the request line
-				line=in.readLine();
-				if(line!=null){
-// 					System.out.println("got line:" + line);
-					StringTokenizer st = new StringTokenizer( line );
-					if ( !st.hasMoreTokens())
-						sendError( HTTP_BADREQUEST, "BAD REQUEST: Syntax error. Usage: GET /example/file.html" );
-
-					String method = st.nextToken();
-
-					if ( !st.hasMoreTokens())
-						sendError( HTTP_BADREQUEST, "BAD REQUEST: Missing URI. Usage: GET /example/file.html" );
-
-					String uri = decodePercent( st.nextToken());
-
-					// Decode parameters from the URI
-					Properties parms = new Properties();
-					int qmi = uri.indexOf( '?' );
-					if ( qmi >= 0 )
-					{
-						decodeParms( uri.substring( qmi+1 ), parms );
-						uri = decodePercent( uri.substring( 0, qmi ));
-					}
-
-					// If there's another token, it's protocol version,
-					// followed by HTTP headers. Ignore version but parse headers.
-					Properties header = new Properties();
-					if ( st.hasMoreTokens())
-					{
-						line = in.readLine();
-						while ( line!=null && line.trim().length() > 0 )
-						{
-							int p = line.indexOf( ':' );
-							header.put( line.substring(0,p).trim(), line.substring(p+1).trim());
-							line = in.readLine();
-						}
-					}
-
-					String data=null;
-					int length=0, length_so_far=0, len;
-					char[] cbuf=new char[1024];
-					// If the method is POST, there may be parameters
-					// in data section, too, read another line:
-					if ( method.equalsIgnoreCase( "POST" )){
-						try{
-							String contentLength=header.getProperty("Content-length");
-							if(contentLength==null){
-								contentLength=header.getProperty("Content-Length");
-							}
-							length=Integer.parseInt(contentLength);
-						}catch(NumberFormatException ex){};
-
-						while( length_so_far<length &&  (len=in.read(cbuf,0,1023))!=-1){
-							line=new String(cbuf,0,len);
-							if(data==null) data=line;
-							else data += line;
-							length_so_far+=len;
-						}
-					}
-
-//					System.out.println("data length " + length_so_far + " of " + length);
-
-					// Ok, now do the serve()
-					Response r = serve( uri, method, header, parms, data );
-					if ( r == null )
-						sendError( HTTP_INTERNALERROR, "SERVER INTERNAL ERROR: Serve() returned a null response." );
-					else
-						sendResponse( r.status, r.mimeType, r.header, r.data );
-
-					in.close();
+				boolean first = true;
+				// Bounds only the wait for each request line, serveRequest lifts it again.
+				// A client that connects and never sends one must not hold the thread either
+				mySocket.setSoTimeout( keepAliveTimeoutMs );
+				while ( serveRequest( in, first ))
+				{
+					first = false;
+					mySocket.setSoTimeout( keepAliveTimeoutMs );
 				}
 			}
+			catch ( SocketTimeoutException ste )
+			{
+				// Idle connection, just close it
+			}
 			catch ( IOException ioe )
 			{
 				try
@@ -348,6 +448,105 @@ public class NanoHTTPD
 			{
 				// Thrown by sendError, ignore and exit the thread.
 			}
+			finally
+			{
+				try { mySocket.close(); } catch ( IOException ioe ) {}
+			}
+		}
+
+		/**
+		 * Reads and answers one request. Returns whether the connection stays open.
+		 */
+		private boolean serveRequest( BufferedReader in, boolean first ) throws IOException, InterruptedException
+		{
+			// Read the request line
+			String line=in.readLine();
+			if(line==null)
+				return false;
+			long startNanos = first ? acceptNanos : System.nanoTime();
+			mySocket.setSoTimeout( 0 );
+// 			System.out.println("got line:" + line);
+			StringTokenizer st = new StringTokenizer( line );
+			if ( !st.hasMoreTokens())
+				sendError( HTTP_BADREQUEST, "BAD REQUEST: Syntax error. Usage: GET /example/file.html" );
+
+			String method = st.nextToken();
+
+			if ( !st.hasMoreTokens())
+				sendError( HTTP_BADREQUEST, "BAD REQUEST: Missing URI. Usage: GET /example/file.html" );
+
+			String uri = decodePercent( st.nextToken());
+
+			// Decode parameters from the URI
+			Properties parms = new Properties();
+			int qmi = uri.indexOf( '?' );
+			if ( qmi >= 0 )
+			{
+				decodeParms( uri.substring( qmi+1 ), parms );
+				uri = decodePercent( uri.substring( 0, qmi ));
+			}
+
+			// If there's another token, it's protocol version,
+			// followed by HTTP headers.
+			Properties header = new Properties();
+			String version = "HTTP/0.9";
+			if ( st.hasMoreTokens())
+			{
+				version = st.nextToken();
+				line = in.readLine();
+				while ( line!=null && line.trim().length() > 0 )
+				{
+					int p = line.indexOf( ':' );
+					header.put( line.substring(0,p).trim(), line.substring(p+1).trim());
+					line = in.readLine();
+				}
+			}
+			String connection = headerValue( header, "Connection" );
+			boolean keepAlive = version.equals( "HTTP/1.1" ) ? !"close".equalsIgnoreCase( connection )
+					: "keep-alive".equalsIgnoreCase( connection );
+
+			String data=null;
+			int length=0, length_so_far=0, len;
+			char[] cbuf=new char[1024];
+			// If the method is POST, there may be parameters
+			// in data section, too, read another line:
+			if ( method.equalsIgnoreCase( "POST" )){
+				try{
+					length=Integer.parseInt(headerValue(header, "Content-Length"));
+				}catch(NumberFormatException ex){};
+
+				// Never read past the body, the next request may follow on the same connection
+				while( length_so_far<length &&  (len=in.read(cbuf,0,Math.min(1023,length-length_so_far)))!=-1){
+					line=new String(cbuf,0,len);
+					if(data==null) data=line;
+					else data += line;
+					length_so_far+=len;
+				}
+			}
+
+//			System.out.println("data length " + length_so_far + " of " + length);
+
+			// Ok, now do the serve()
+			Response r = serve( uri, method, header, parms, data );
+			if ( r == null )
+				sendError( HTTP_INTERNALERROR, "SERVER INTERNAL ERROR: Serve() returned a null response." );
+			else
+				sendResponse( r.status, r.mimeType, r.header, r.data, keepAlive );
+			long nanos = System.nanoTime() - startNanos;
+			recordLatency( nanos );
+			requestServed( method, uri, nanos );
+			return keepAlive;
+		}
+
+		/**
+		 * Looks up a header regardless of the case of its name, null if absent.
+		 */
+		private String headerValue( Properties header, String name )
+		{
+			for ( String key : header.stringPropertyNames())
+				if ( key.equalsIgnoreCase( name ))
+					return header.getProperty( key );
+			return null;
 		}
 
 		/**
@@ -413,23 +612,25 @@ public class NanoHTTPD
 		 */
 		private void sendError( String status, String msg ) throws InterruptedException
 		{
-			sendResponse( status, MIME_PLAINTEXT, null, new ByteArrayInputStream( msg.getBytes()));
+			sendResponse( status, MIME_PLAINTEXT, null, new ByteArrayInputStream( msg.getBytes()), false );
 			throw new InterruptedException();
 		}
 
 		/**
-		 * Sends given response to the socket.
+		 * Sends given response to the socket. A kept-alive connection stays open,
+		 * which requires a Content-Length, so a body without one is buffered first.
 		 */
-		private void sendResponse( String status, String mime, Properties header, InputStream data )
+		private void sendResponse( String status, String mime, Properties header, InputStream data, boolean keepAlive )
 		{
 			try
 			{
 				if ( status == null )
 					throw new Error( "sendResponse(): Status can't be null." );
 				
-				OutputStream out = mySocket.getOutputStream();
+				// Headers and body go out in one flush
+				OutputStream out = new BufferedOutputStream( mySocket.getOutputStream(), 4096 );
 				PrintWriter pw = new PrintWriter( out );
-				pw.print("HTTP/1.0 " + status + " \r\n");
+				pw.print(( keepAlive ? "HTTP/1.1 " : "HTTP/1.0 " ) + status + " \r\n");
 					
 				if ( mime != null )
 					pw.print("Content-Type: " + mime + "\r\n");	
@@ -447,6 +648,27 @@ public class NanoHTTPD
 						pw.print( key + ": " + value + "\r\n");
 					}
 				}
+
+				if ( keepAlive )
+				{
+					if ( header == null || headerValue( header, "Content-Length" ) == null )
+					{
+						ByteArrayOutputStream body = new ByteArrayOutputStream();
+						if ( data != null )
+						{
+							byte[] buff = new byte[2048];
+							int read;
+							while (( read = data.read( buff )) > 0 )
+								body.write( buff, 0, read );
+							data.close();
+						}
+						pw.print( "Content-Length: " + body.size() + "\r\n" );
+						data = new ByteArrayInputStream( body.toByteArray());
+					}
+					pw.print( "Connection: keep-alive\r\n" );
+					if ( keepAliveTimeoutMs == KEEP_ALIVE_TIMEOUT_MS )
+						pw.print( "Keep-Alive: timeout=" + KEEP_ALIVE_ADVERTISED_S + "\r\n" );
+				}
 				
 				pw.print("\r\n");
 				pw.flush();
@@ -462,7 +684,8 @@ public class NanoHTTPD
 					}
 				}
 				out.flush();
-				out.close();
+				if ( !keepAlive )
+					out.close();
 				if ( data != null ) 
 					data.close();
 			}
@@ -474,7 +697,327 @@ public class NanoHTTPD
 		}
 		
 		private Socket mySocket;
+		private final long acceptNanos;
 	};
+
+	/**
+	 * Non-blocking front-end: a single thread runs a Selector over the server
+	 * socket and all connections, parses each request straight from the
+	 * connection's buffer and calls serve() on the same thread. The controller
+	 * sends one message at a time, so nothing waits behind a long serve().
+	 * Buffers belong to the connection and are reused for every request on it;
+	 * query parameters are not decoded (the controller sends none).
+	 */
+	private class SelectorLoop implements Runnable
+	{
+		public SelectorLoop( int port ) throws IOException
+		{
+			selector = Selector.open();
+			server = ServerSocketChannel.open();
+			server.bind( new InetSocketAddress( port ));
+			server.configureBlocking( false );
+			server.register( selector, SelectionKey.OP_ACCEPT );
+		}
+
+		public void run()
+		{
+			try
+			{
+				while ( true )
+					selector.select( this::handle );
+			}
+			catch ( IOException ioe ) {}
+			try {
+				selector.close();
+				server.close();
+			} catch ( IOException ioe ) {}
+		}
+
+		private void handle( SelectionKey key )
+		{
+			try
+			{
+				if ( key.isAcceptable())
+				{
+					SocketChannel channel = server.accept();
+					if ( channel == null )
+						return;
+					channel.configureBlocking( false );
+					channel.socket().setTcpNoDelay( true );
+					channel.register( selector, SelectionKey.OP_READ, new Connection( System.nanoTime()));
+				}
+				else if ( key.isReadable())
+					read( key );
+				else if ( key.isWritable())
+					write( key );
+			}
+			catch ( IOException ioe )
+			{
+				close( key );
+			}
+			catch ( RuntimeException re )
+			{
+				// Only this connection is lost, the loop serves all the others
+				re.printStackTrace();
+				close( key );
+			}
+		}
+
+		private void read( SelectionKey key ) throws IOException
+		{
+			Connection c = (Connection) key.attachment();
+			if ( !c.in.hasRemaining())
+			{
+				if ( c.in.capacity() >= MAX_REQUEST_BYTES )
+				{
+					close( key );
+					return;
+				}
+				c.in = grow( c.in, c.in.capacity() * 2 );
+			}
+			int read = ((SocketChannel) key.channel()).read( c.in );
+			if ( read < 0 )
+			{
+				close( key );
+				return;
+			}
+			if ( c.startNanos == 0 )
+				c.startNanos = System.nanoTime();
+			serveBuffered( key, c );
+		}
+
+		/**
+		 * Serves the request at the start of the input buffer, if it has fully arrived.
+		 */
+		private void serveBuffered( SelectionKey key, Connection c ) throws IOException
+		{
+			byte[] in = c.in.array();
+			int length = c.in.position();
+			int headerEnd = -1;
+			for ( int i = 3; i < length; i++ )
+				if ( in[i] == '\n' && in[i-1] == '\r' && in[i-2] == '\n' && in[i-3] == '\r' )
+				{
+					headerEnd = i + 1;
+					break;
+				}
+			if ( headerEnd < 0 )
+				return;
+
+			// Request line
+			int lineEnd = indexOf( in, '\r', 0, headerEnd );
+			int methodEnd = indexOf( in, ' ', 0, lineEnd );
+			int uriEnd = indexOf( in, ' ', methodEnd + 1, lineEnd );
+			if ( methodEnd >= lineEnd || methodEnd + 1 >= uriEnd )
+			{
+				respond( key, c, new Response( HTTP_BADREQUEST, MIME_PLAINTEXT, "BAD REQUEST: Syntax error." ), false, headerEnd );
+				return;
+			}
+			c.method = ascii( in, 0, methodEnd );
+			c.uri = ascii( in, methodEnd + 1, uriEnd );
+			int query = c.uri.indexOf( '?' );
+			if ( query >= 0 )
+				c.uri = c.uri.substring( 0, query );
+			boolean http11 = uriEnd < lineEnd && regionMatches( in, uriEnd + 1, lineEnd, "HTTP/1.1" );
+
+			// Headers
+			header.clear();
+			parms.clear();
+			int contentLength = 0;
+			String connection = null;
+			for ( int start = lineEnd + 2; start < headerEnd - 2; start = lineEnd + 2 )
+			{
+				lineEnd = indexOf( in, '\r', start, headerEnd );
+				int colon = indexOf( in, ':', start, lineEnd );
+				if ( colon >= lineEnd )
+					continue;
+				String name = ascii( in, start, colon ).trim(), value = ascii( in, colon + 1, lineEnd ).trim();
+				header.put( name, value );
+				if ( name.equalsIgnoreCase( "Content-Length" ))
+				{
+					try { contentLength = Integer.parseInt( value ); } catch ( NumberFormatException nfe ) {}
+				}
+				else if ( name.equalsIgnoreCase( "Connection" ))
+					connection = value;
+			}
+			boolean keepAlive = http11 ? !"close".equalsIgnoreCase( connection ) : "keep-alive".equalsIgnoreCase( connection );
+
+			// Body
+			if ( !c.method.equalsIgnoreCase( "POST" ))
+				contentLength = 0;
+			int requestEnd = headerEnd + contentLength;
+			if ( requestEnd > MAX_REQUEST_BYTES )
+			{
+				close( key );
+				return;
+			}
+			if ( length < requestEnd )
+			{
+				if ( c.in.capacity() < requestEnd )
+					c.in = grow( c.in, requestEnd );
+				return;
+			}
+			String data = contentLength > 0 ? ascii( in, headerEnd, requestEnd ) : null;
+
+			Response r;
+			try
+			{
+				r = serve( c.uri, c.method, header, parms, data );
+			}
+			catch ( RuntimeException re )
+			{
+				// serve() runs on the loop thread, it must not take the loop down with it
+				re.printStackTrace();
+				r = new Response( HTTP_INTERNALERROR, MIME_PLAINTEXT, "SERVER INTERNAL ERROR: " + re );
+				keepAlive = false;
+			}
+			if ( r == null )
+				r = new Response( HTTP_INTERNALERROR, MIME_PLAINTEXT, "SERVER INTERNAL ERROR: Serve() returned a null response." );
+			respond( key, c, r, keepAlive, requestEnd );
+		}
+
+		/**
+		 * Puts the response into the output buffer, drops the request from the
+		 * input buffer and starts writing.
+		 */
+		private void respond( SelectionKey key, Connection c, Response r, boolean keepAlive, int requestEnd ) throws IOException
+		{
+			body.clear();
+			if ( r.data != null )
+			{
+				int read;
+				while (( read = r.data.read( copy )) > 0 )
+				{
+					if ( body.remaining() < read )
+						body = grow( body, ( body.capacity() + read ) * 2 );
+					body.put( copy, 0, read );
+				}
+				r.data.close();
+			}
+			body.flip();
+
+			head.setLength( 0 );
+			head.append( keepAlive ? "HTTP/1.1 " : "HTTP/1.0 " ).append( r.status ).append( "\r\n" );
+			if ( r.mimeType != null )
+				head.append( "Content-Type: " ).append( r.mimeType ).append( "\r\n" );
+			Enumeration<?> e = r.header.keys();
+			while ( e.hasMoreElements())
+			{
+				String name = (String) e.nextElement();
+				if ( name.equalsIgnoreCase( "Content-Length" ))
+					continue;
+				head.append( name ).append( ": " ).append( r.header.getProperty( name )).append( "\r\n" );
+			}
+			head.append( "Content-Length: " ).append( body.remaining());
+			head.append( keepAlive ? "\r\nConnection: keep-alive\r\n\r\n" : "\r\nConnection: close\r\n\r\n" );
+
+			// Make room for the whole response before writing any of it
+			ByteBuffer out = c.out;
+			out.clear();
+			if ( out.capacity() < head.length() + body.remaining())
+				out = c.out = ByteBuffer.allocate( head.length() + body.remaining());
+			for ( int i = 0; i < head.length(); i++ )
+				out.put( (byte) head.charAt( i ));
+			out.put( body );
+			out.flip();
+
+			// Keep what the client already sent of the next request
+			int pipelined = c.in.position() - requestEnd;
+			System.arraycopy( c.in.array(), requestEnd, c.in.array(), 0, pipelined );
+			c.in.position( pipelined );
+			c.keepAlive = keepAlive;
+			key.interestOps( SelectionKey.OP_WRITE );
+			write( key );
+		}
+
+		private void write( SelectionKey key ) throws IOException
+		{
+			Connection c = (Connection) key.attachment();
+			((SocketChannel) key.channel()).write( c.out );
+			if ( c.out.hasRemaining())
+				return;
+
+			long nanos = System.nanoTime() - c.startNanos;
+			recordLatency( nanos );
+			requestServed( c.method, c.uri, nanos );
+			if ( !c.keepAlive )
+			{
+				close( key );
+				return;
+			}
+			key.interestOps( SelectionKey.OP_READ );
+			c.startNanos = c.in.position() > 0 ? System.nanoTime() : 0;
+			if ( c.in.position() > 0 )
+				serveBuffered( key, c );
+		}
+
+		private void close( SelectionKey key )
+		{
+			key.cancel();
+			try { key.channel().close(); } catch ( IOException ioe ) {}
+		}
+
+		private final Selector selector;
+		private final ServerSocketChannel server;
+		// Only touched by the loop thread, so shared by all connections
+		private final Properties header = new Properties(), parms = new Properties();
+		private final byte[] copy = new byte[2048];
+		private ByteBuffer body = ByteBuffer.allocate( 4096 );
+		private final StringBuilder head = new StringBuilder( 256 );
+	}
+
+	/**
+	 * State of one connection of the selector front-end
+	 */
+	private static class Connection
+	{
+		Connection( long acceptNanos )
+		{
+			startNanos = acceptNanos;
+		}
+
+		// START messages of the larger boards are several kilobytes
+		ByteBuffer in = ByteBuffer.allocate( 16384 ), out = ByteBuffer.allocate( 1024 );
+		// When the current request arrived (accept for the first one), 0 while idle
+		long startNanos;
+		String method, uri;
+		boolean keepAlive;
+	}
+
+	private static final int MAX_REQUEST_BYTES = 1 << 20;
+
+	private static ByteBuffer grow( ByteBuffer buffer, int capacity )
+	{
+		ByteBuffer grown = ByteBuffer.allocate( Math.max( capacity, buffer.capacity()));
+		buffer.flip();
+		grown.put( buffer );
+		return grown;
+	}
+
+	private static String ascii( byte[] b, int from, int to )
+	{
+		return new String( b, from, to - from, java.nio.charset.StandardCharsets.ISO_8859_1 );
+	}
+
+	/**
+	 * First index of c in b[from, to), or to if there is none
+	 */
+	private static int indexOf( byte[] b, char c, int from, int to )
+	{
+		for ( int i = from; i < to; i++ )
+			if ( b[i] == c )
+				return i;
+		return to;
+	}
+
+	private static boolean regionMatches( byte[] b, int from, int to, String s )
+	{
+		if ( to - from != s.length())
+			return false;
+		for ( int i = 0; i < s.length(); i++ )
+			if ( b[from + i] != s.charAt( i ))
+				return false;
+		return true;
+	}
 	
 	/**
 	 * URL-encodes everything between "/"-characters.
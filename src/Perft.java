@@ -0,0 +1,250 @@
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * Perft: counts the leaf nodes of the legal move tree to a fixed depth, to validate the move
+ * generators against each other and against recorded reference counts, and to measure raw
+ * move generator throughput.
+ * <p>
+ * The tree follows the game rules: White moves at even steps, and a position where either
+ * side has no legal move, or final_step is reached, is terminal and has no moves.
+ * <p>
+ * Usage, from the directory with the queenbattle_*.gdl files:
+ * <pre>
+ *   java Perft -board 6x6 [-moves "2 1 2 4, 6 5 4 5"] [-depth N] [-divide] [-engine bitboard|reference|both]
+ *   java Perft -verify [-maxdepth N]
+ * </pre>
+ * -divide prints the count below every root move; -engine both runs BitboardState and
+ * QueenBattleState and reports the first root move where they disagree. -verify runs both
+ * engines over the recorded reference positions.
+ */
+public class Perft {
+    // Recorded positions: board, moves played from the initial position, leaf counts for depth 1, 2, ...
+    private static final Object[][] REFERENCE = {
+        {"4x4", "", new long[] {12L, 128L, 1388L, 13020L, 101204L, 660750L, 3453398L}},
+        // Two moves in, depth 7 passes final_step (8) and every line ends in a draw first
+        {"4x4", "3 1 3 2, 2 4 1 3", new long[] {12L, 119L, 864L, 5582L, 26145L, 98341L, 0L}},
+        {"5x5", "", new long[] {28L, 708L, 16712L, 355848L, 6988560L}},
+        {"5x5", "1 2 3 4, 4 5 4 2, 2 1 2 2, 4 2 3 2", new long[] {19L, 278L, 3936L, 47935L, 476464L, 4328860L}},
+        {"6x6", "", new long[] {40L, 1504L, 55986L, 1940930L}},
+        {"6x6", "2 1 2 4, 6 5 4 5, 1 2 1 4, 5 6 4 6, 5 1 5 4, 4 5 3 6, 1 4 4 1", new long[] {17L, 576L, 9217L, 266999L, 3869123L}},
+        {"7x7", "", new long[] {48L, 2172L, 100510L, 4405010L}},
+        {"7x7", "7 3 6 2, 3 7 3 6, 5 1 5 6, 3 6 3 4, 6 2 1 7, 5 7 3 5, 3 1 3 3, 3 5 5 3, 5 6 6 7, 3 4 6 4, 3 3 3 2",
+            new long[] {27L, 644L, 15854L, 320143L, 7030341L}},
+        {"8x8", "", new long[] {60L, 3444L, 203042L, 11451752L}},
+        {"8x8", "3 1 4 1, 6 8 6 5, 1 3 1 2, 3 8 5 6, 6 1 4 3, 5 6 5 7, 4 1 7 4, 1 6 1 8, 8 3 7 3, 6 5 8 5, 4 3 4 5, 8 5 6 7, "
+            + "1 2 3 2, 1 8 3 6, 7 3 2 8, 5 7 2 4", new long[] {45L, 1837L, 69863L, 2365613L}},
+        {"9x9", "", new long[] {72L, 4956L, 347776L}},
+        {"9x9", "1 3 5 7, 9 7 9 6, 3 1 1 1, 1 7 3 5, 7 1 5 3, 3 9 5 9, 5 3 8 6, 9 6 8 5, 8 6 6 8, 7 9 7 8, 5 7 7 5, 5 9 5 8, "
+            + "9 3 9 2, 3 5 3 2, 6 8 6 1, 8 5 7 4, 7 5 7 7, 7 4 8 4, 7 7 8 7, 3 2 1 2, 9 2 4 2", new long[] {36L, 1563L, 54321L, 2077586L}},
+        {"10x10", "", new long[] {80L, 6172L, 495688L}},
+        {"10x10", "1 4 5 8, 4 10 4 5, 7 1 7 4, 4 5 4 6, 4 1 2 1, 4 6 1 3, 2 1 2 6, 1 7 1 8, 7 4 2 9, 1 8 1 10, 2 6 2 4, 1 3 5 3, "
+            + "2 9 2 7, 5 3 6 3, 5 8 8 5, 6 3 5 4, 2 4 3 4, 7 10 7 7, 8 5 10 3, 10 7 9 6, 2 7 5 10, 1 10 2 10, 10 4 8 2, 9 6 10 5, "
+            + "5 10 4 9, 5 4 5 6, 4 9 10 9", new long[] {51L, 2692L, 116146L, 5250075L}},
+    };
+
+    public static void main(String[] args) throws Exception {
+        String board = "6x6", moves = "", engine = "bitboard";
+        int depth = 3, maxDepth = Integer.MAX_VALUE;
+        boolean divide = false, verify = false;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-board": board = args[++i]; break;
+                case "-moves": moves = args[++i]; break;
+                case "-depth": depth = Integer.parseInt(args[++i]); break;
+                case "-maxdepth": maxDepth = Integer.parseInt(args[++i]); break;
+                case "-engine": engine = args[++i]; break;
+                case "-divide": divide = true; break;
+                case "-verify": verify = true; break;
+                default: throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+        Map<String, GameDescription> boards = MatchRunner.loadBoards(Paths.get("."), null);
+        if (verify) {
+            System.exit(verify(boards, maxDepth) ? 0 : 1);
+        }
+
+        GameDescription g = boards.get(board);
+        if (g == null) throw new IllegalArgumentException("No game description for board " + board);
+        BitboardState bb = bitboardPosition(g, moves);
+        QueenBattleState ref = referencePosition(g, moves);
+        if (divide) {
+            if (!engine.equals("reference")) divide(bb, depth);
+            if (!engine.equals("bitboard")) divide(ref, g.finalStep, depth);
+        } else {
+            int plies = depth;
+            if (!engine.equals("reference")) report("bitboard", plies, () -> perft(bb, plies, new int[plies + 1][bb.maxMoves()]));
+            if (!engine.equals("bitboard")) report("reference", plies, () -> perft(ref, g.finalStep, plies));
+        }
+        if (engine.equals("both") && !compare(bb, ref, g.finalStep, depth)) System.exit(1);
+    }
+
+    private interface Count { long run(); }
+
+    private static long report(String engine, int depth, Count count) {
+        long start = System.nanoTime();
+        long nodes = count.run();
+        long ns = Math.max(1, System.nanoTime() - start);
+        System.out.println(String.format("%-9s perft(%d) = %d in %d ms, %.0f nodes/s", engine, depth, nodes, ns / 1000000, nodes * 1e9 / ns));
+        return nodes;
+    }
+
+    // Runs both engines over the recorded positions up to maxDepth; returns whether all counts match
+    private static boolean verify(Map<String, GameDescription> boards, int maxDepth) {
+        boolean ok = true;
+        for (Object[] r : REFERENCE) {
+            GameDescription g = boards.get((String) r[0]);
+            long[] expected = (long[]) r[2];
+            BitboardState bb = bitboardPosition(g, (String) r[1]);
+            QueenBattleState ref = referencePosition(g, (String) r[1]);
+            for (int d = 1; d <= Math.min(expected.length, maxDepth); d++) {
+                int depth = d;
+                String name = r[0] + (((String) r[1]).isEmpty() ? " start" : " +" + ((String) r[1]).split(",").length + " moves");
+                long start = System.nanoTime();
+                long b = perft(bb, depth, new int[depth + 1][bb.maxMoves()]);
+                long ms = (System.nanoTime() - start) / 1000000;
+                long q = perft(ref, g.finalStep, depth);
+                boolean pass = b == expected[d - 1] && q == expected[d - 1];
+                ok &= pass;
+                System.out.println(String.format("%-18s depth %d: expected %d, bitboard %d (%d ms), reference %d %s",
+                        name, d, expected[d - 1], b, ms, q, pass ? "ok" : "MISMATCH"));
+            }
+        }
+        System.out.println(ok ? "All perft counts match" : "Perft counts differ");
+        return ok;
+    }
+
+    // Reports the first root move whose subtree counts differ between the engines, recursing into it
+    private static boolean compare(BitboardState bb, QueenBattleState ref, int finalStep, int depth) {
+        if (depth == 0) return true;
+        String role = ref.getBurnedCount() % 2 == 0 ? "white" : "black";
+        boolean terminal = isTerminal(ref, finalStep);
+        List<int[]> moves = terminal ? Collections.emptyList() : ref.getLegalMoves(role);
+        int[] buf = new int[bb.maxMoves()];
+        int n = isTerminal(bb) ? 0 : bb.generateMoves(sideToMove(bb), buf);
+        if (n != moves.size()) {
+            System.out.println("Move count differs after " + (ref.getBurnedCount()) + " steps: bitboard " + n + ", reference " + moves.size());
+            return false;
+        }
+        for (int[] m : moves) {
+            bb.applyMove(m[0], m[1], m[2], m[3], role);
+            ref.applyMove(m[0], m[1], m[2], m[3], role);
+            long b = perft(bb, depth - 1, new int[depth][bb.maxMoves()]), q = perft(ref, finalStep, depth - 1);
+            if (b != q) {
+                System.out.println("After " + m[0] + " " + m[1] + " " + m[2] + " " + m[3] + ": bitboard " + b + ", reference " + q);
+                compare(bb, ref, finalStep, depth - 1);
+            }
+            bb.retractMove(m[0], m[1], m[2], m[3], role);
+            ref.retractMove(m[0], m[1], m[2], m[3], role);
+            if (b != q) return false;
+        }
+        return true;
+    }
+
+    // Leaf counts below each root move, then the total
+    private static void divide(BitboardState s, int depth) {
+        int side = sideToMove(s);
+        int[] moves = new int[s.maxMoves()];
+        int n = isTerminal(s) || depth == 0 ? 0 : s.generateMoves(side, moves);
+        int[][] buf = new int[depth][s.maxMoves()];
+        long total = 0, start = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            int from = BitboardState.moveFrom(moves[i]), to = BitboardState.moveTo(moves[i]);
+            s.applyMove(moves[i], side);
+            long count = perft(s, depth - 1, buf);
+            s.retractMove(moves[i], side);
+            total += count;
+            System.out.println(s.fileOf(from) + " " + s.rankOf(from) + " " + s.fileOf(to) + " " + s.rankOf(to) + ": " + count);
+        }
+        long ns = Math.max(1, System.nanoTime() - start);
+        System.out.println(String.format("bitboard: %d moves, %d nodes in %d ms, %.0f nodes/s", n, total, ns / 1000000, total * 1e9 / ns));
+    }
+
+    private static void divide(QueenBattleState s, int finalStep, int depth) {
+        String role = s.getBurnedCount() % 2 == 0 ? "white" : "black";
+        List<int[]> moves = isTerminal(s, finalStep) || depth == 0 ? Collections.emptyList() : s.getLegalMoves(role);
+        long total = 0, start = System.nanoTime();
+        for (int[] m : moves) {
+            s.applyMove(m[0], m[1], m[2], m[3], role);
+            long count = perft(s, finalStep, depth - 1);
+            s.retractMove(m[0], m[1], m[2], m[3], role);
+            total += count;
+            System.out.println(m[0] + " " + m[1] + " " + m[2] + " " + m[3] + ": " + count);
+        }
+        long ns = Math.max(1, System.nanoTime() - start);
+        System.out.println(String.format("reference: %d moves, %d nodes in %d ms, %.0f nodes/s", moves.size(), total, ns / 1000000, total * 1e9 / ns));
+    }
+
+    // Leaf nodes at depth, with bulk counting at the last ply; buf holds one move buffer per remaining ply
+    static long perft(BitboardState s, int depth, int[][] buf) {
+        if (depth == 0) return 1;
+        if (isTerminal(s)) return 0;
+        int side = sideToMove(s);
+        int[] moves = buf[depth - 1];
+        int n = s.generateMoves(side, moves);
+        if (depth == 1) return n;
+        long total = 0;
+        for (int i = 0; i < n; i++) {
+            s.applyMove(moves[i], side);
+            total += perft(s, depth - 1, buf);
+            s.retractMove(moves[i], side);
+        }
+        return total;
+    }
+
+    static long perft(QueenBattleState s, int finalStep, int depth) {
+        if (depth == 0) return 1;
+        if (isTerminal(s, finalStep)) return 0;
+        String role = s.getBurnedCount() % 2 == 0 ? "white" : "black";
+        List<int[]> moves = s.getLegalMoves(role);
+        if (depth == 1) return moves.size();
+        long total = 0;
+        for (int[] m : moves) {
+            s.applyMove(m[0], m[1], m[2], m[3], role);
+            total += perft(s, finalStep, depth - 1);
+            s.retractMove(m[0], m[1], m[2], m[3], role);
+        }
+        return total;
+    }
+
+    private static int sideToMove(BitboardState s) { return (s.step & 1) == 0 ? BitboardState.WHITE : BitboardState.BLACK; }
+
+    private static boolean isTerminal(BitboardState s) {
+        return s.mobility[BitboardState.WHITE] == 0 || s.mobility[BitboardState.BLACK] == 0 || s.atStepLimit();
+    }
+
+    private static boolean isTerminal(QueenBattleState s, int finalStep) {
+        if (finalStep >= 0 && s.getBurnedCount() >= finalStep) return true;
+        return s.getLegalMoves("white").isEmpty() || s.getLegalMoves("black").isEmpty();
+    }
+
+    private static BitboardState bitboardPosition(GameDescription g, String moves) {
+        BitboardState s = new BitboardState(g.width, g.height, g.finalStep, g.whitePositions, g.blackPositions);
+        for (int[] m : parseMoves(moves)) {
+            int side = s.step % 2 == 0 ? BitboardState.WHITE : BitboardState.BLACK;
+            if (s.pieceAt(m[0], m[1]) != side) throw new IllegalArgumentException("No queen of the side to move at " + m[0] + " " + m[1]);
+            s.applyMove(m[0], m[1], m[2], m[3], side == BitboardState.WHITE ? "white" : "black");
+        }
+        return s;
+    }
+
+    private static QueenBattleState referencePosition(GameDescription g, String moves) {
+        QueenBattleState s = new QueenBattleState(g.width, g.height, g.whitePositions, g.blackPositions);
+        for (int[] m : parseMoves(moves)) s.applyMove(m[0], m[1], m[2], m[3], s.getBurnedCount() % 2 == 0 ? "white" : "black");
+        return s;
+    }
+
+    // Moves as "x1 y1 x2 y2" separated by commas
+    private static List<int[]> parseMoves(String moves) {
+        List<int[]> list = new ArrayList<>();
+        for (String m : moves.split(",")) {
+            if (m.trim().isEmpty()) continue;
+            String[] t = m.trim().split("\\s+");
+            if (t.length != 4) throw new IllegalArgumentException("Move must be x1 y1 x2 y2: " + m);
+            int[] c = new int[4];
+            for (int i = 0; i < 4; i++) c[i] = Integer.parseInt(t[i]);
+            list.add(c);
+        }
+        return list;
+    }
+}
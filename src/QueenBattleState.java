@@ -114,7 +114,7 @@ public class QueenBattleState {
     }
 
     // BFS to calculate territory control for both players
-    private int calculateBFSTerritory() {
+    int calculateBFSTerritory() {
         for (int i = 1; i <= width; i++) {
             for (int j = 1; j <= height; j++) {
                 dWhite[i][j] = -1;
@@ -1,4 +1,5 @@
 import java.util.List;
+import java.util.Random;
 
 public class QueenBattleTest {
     public static void main(String[] args) {
@@ -6,6 +7,9 @@ public class QueenBattleTest {
             testMovementAndBurning();
             testDiagonalAndEdgeBoundaries();
             testObstacleAndBurnedPath();
+            testBitboardMatchesReference();
+            testSeparatedEndgame();
+            testGameDescriptionParsing();
             testTerminalWinLoss();
             testDrawByTileLimit();
             System.out.println("\nALL TESTS PASSED!");
@@ -65,6 +69,120 @@ public class QueenBattleTest {
         System.out.println("testObstacleAndBurnedPath: Passed");
     }
 
+    // Bitboard state must generate the same moves and evaluations as the reference state
+    public static void testBitboardMatchesReference() {
+        Random rnd = new Random(7);
+        int[][][] sizes = {
+            {{4, 4}, {2, 1}, {3, 1}, {1, 2}, {4, 2}, {1, 3}, {4, 3}, {2, 4}, {3, 4}},
+            {{10, 10}, {4, 1}, {7, 1}, {1, 4}, {10, 4}, {1, 7}, {10, 7}, {4, 10}, {7, 10}}
+        };
+        for (int[][] cfg : sizes) {
+            int w = cfg[0][0], h = cfg[0][1];
+            int[][] whitePos = {cfg[1], cfg[2], cfg[3], cfg[4]};
+            int[][] blackPos = {cfg[5], cfg[6], cfg[7], cfg[8]};
+            for (int game = 0; game < 20; game++) {
+                QueenBattleState ref = new QueenBattleState(w, h, whitePos, blackPos);
+                BitboardState bb = new BitboardState(w, h, whitePos, blackPos);
+                String role = "white";
+                while (true) {
+                    List<int[]> refMoves = ref.getLegalMoves(role);
+                    List<int[]> bbMoves = bb.getLegalMoves(role);
+                    if (refMoves.size() != bbMoves.size())
+                        throw new AssertionError("Move count mismatch: " + refMoves.size() + " vs " + bbMoves.size());
+                    int packed = bb.generateMoves(role.equals("white") ? BitboardState.WHITE : BitboardState.BLACK, new int[bb.maxMoves()]);
+                    if (packed != refMoves.size())
+                        throw new AssertionError("Packed move count mismatch: " + refMoves.size() + " vs " + packed);
+                    for (int p = BitboardState.WHITE; p <= BitboardState.BLACK; p++) {
+                        if (bb.mobility[p] != bb.countMobility(p))
+                            throw new AssertionError("Incremental mobility mismatch: " + bb.mobility[p] + " vs " + bb.countMobility(p));
+                    }
+                    if (bb.calculateFloodTerritory() != bb.calculateBFSTerritory())
+                        throw new AssertionError("Flood fill territory mismatch: " + bb.calculateFloodTerritory() + " vs " + bb.calculateBFSTerritory());
+                    for (String r : new String[]{"white", "black"}) {
+                        if (ref.evaluate(r) != bb.evaluate(r))
+                            throw new AssertionError("Evaluation mismatch for " + r + ": " + ref.evaluate(r) + " vs " + bb.evaluate(r));
+                    }
+                    if (refMoves.isEmpty()) break;
+                    int[] m = refMoves.get(rnd.nextInt(refMoves.size()));
+                    long hash = bb.getHash();
+                    int wMob = bb.mobility[BitboardState.WHITE], bMob = bb.mobility[BitboardState.BLACK];
+                    bb.applyMove(m[0], m[1], m[2], m[3], role);
+                    bb.retractMove(m[0], m[1], m[2], m[3], role);
+                    if (bb.getHash() != hash || bb.mobility[BitboardState.WHITE] != wMob || bb.mobility[BitboardState.BLACK] != bMob)
+                        throw new AssertionError("retractMove did not restore the state");
+                    ref.applyMove(m[0], m[1], m[2], m[3], role);
+                    bb.applyMove(m[0], m[1], m[2], m[3], role);
+                    role = role.equals("white") ? "black" : "white";
+                }
+            }
+        }
+        System.out.println("testBitboardMatchesReference: Passed");
+    }
+
+    // Once the queens are walled off, the side with more moves left in its region wins
+    public static void testSeparatedEndgame() {
+        int[][] whitePos = {{1, 1}};
+        int[][] blackPos = {{5, 1}};
+        BitboardState board = new BitboardState(6, 4, whitePos, blackPos);
+        // Walk black's queen down column 4 and off to the right, burning the whole column
+        int cur = board.square(5, 1);
+        int[] path = {board.square(4, 1), board.square(4, 2), board.square(4, 3), board.square(4, 4), board.square(5, 4)};
+        for (int next : path) {
+            board.applyMove(cur, next, BitboardState.BLACK);
+            cur = next;
+        }
+        board.evaluate(BitboardState.WHITE);
+        if (!board.separated) throw new AssertionError("Regions should be separated by the burned column");
+
+        // White can snake through all 11 empty squares of columns 1-3, black has at most 6 squares left
+        EndgameSolver solver = new EndgameSolver(board, 100000);
+        solver.solve(board, BitboardState.WHITE, board.regionLo[BitboardState.WHITE], board.regionHi[BitboardState.WHITE]);
+        if (solver.lowerBound != 11 || solver.upperBound != 11)
+            throw new AssertionError("White should have exactly 11 moves, got " + solver.lowerBound + ".." + solver.upperBound);
+        int score = solver.evaluate(board, BitboardState.WHITE);
+        if (score <= EndgameSolver.WIN) throw new AssertionError("White should win the separated endgame, got " + score);
+
+        // With four steps left both sides outlast the step limit, so the game is drawn
+        board.setFinalStep(board.step + 4);
+        score = solver.evaluate(board, BitboardState.WHITE);
+        if (score != 0) throw new AssertionError("Both sides reach the step limit, expected a draw but got " + score);
+        board.setFinalStep(board.step);
+        if (!board.atStepLimit() || board.evaluate(BitboardState.WHITE) != 0) throw new AssertionError("Reaching final_step should score a draw");
+        System.out.println("testSeparatedEndgame: Passed");
+    }
+
+    // The START message is parsed without lowercasing it; the step limit follows the succ facts
+    public static void testGameDescriptionParsing() {
+        String rules = "((ROLE white) (role black) ; (init (cell 1 1 white))\n"
+                + "(init (cell 2 1 White)) (init (cell 3 4 black)) (init (step 1)) (<= (xcoord ?x) (width ?w))\n"
+                + "(width 4) (height 5) (final_step 4) (succ 1 2) (succ 2 3) (succ 3 4))";
+        GameDescription game = GameDescription.parse(rules);
+        if (game.width != 4 || game.height != 5) throw new AssertionError("Board should be 4x5");
+        if (game.whitePositions.length != 1 || game.whitePositions[0][0] != 2 || game.blackPositions.length != 1)
+            throw new AssertionError("Commented-out or misread starting positions");
+        if (game.finalStep != 3) throw new AssertionError("Step limit should be 3 steps after step 1, was " + game.finalStep);
+        if (GameDescription.parse("((width 4) (height 4) (final_step 8) (succ 0 1))").finalStep != -1)
+            throw new AssertionError("Unreachable final_step should not limit the game");
+        try {
+            GameDescription.parse("((width 4) (height 4) (final_step 8) (succ 2000000000 1))");
+            throw new AssertionError("A huge succ step number should be rejected");
+        } catch (IllegalArgumentException expected) { }
+
+        GdlParser parser = new GdlParser("(START m1 white " + rules + " 30 10)");
+        parser.open();
+        if (!parser.keyword("start")) throw new AssertionError("Command should match ignoring case");
+        parser.skip();
+        parser.atom();
+        GameDescription.parse(parser);
+        if (parser.integer() != 30 || parser.integer() != 10) throw new AssertionError("Clocks should follow the rules");
+        try {
+            GameDescription.parse("((width 4) (height 4)");
+            throw new AssertionError("Unbalanced rules should be rejected");
+        } catch (IllegalArgumentException expected) {
+        }
+        System.out.println("testGameDescriptionParsing: Passed");
+    }
+
     // Task 3 verification: Correct win/loss scores [cite: 46, 48]
     public static void testTerminalWinLoss() {
         int[][] whitePos = {{1, 1}};
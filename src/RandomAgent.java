@@ -7,14 +7,15 @@ public class RandomAgent implements Agent {
     private boolean myTurn;
     private QueenBattleState state;
 
-    public void init(String role, int width, int height, int playclock, int[][] white_positions, int[][] black_positions) {
+    public void init(String role, int width, int height, int finalStep, int startclock, int playclock, int[][] white_positions, int[][] black_positions) {
         this.role = role;
         this.myTurn = role.equals("white"); 
         this.state = new QueenBattleState(width, height, white_positions, black_positions);
     }
 
     public String nextAction(int[] lastMove) {
-        if (lastMove != null) {
+        // The last move is also sent after our own turn, when it has already been applied
+        if (lastMove != null && state.board[lastMove[0]][lastMove[1]] > 0) {
             String oppRole = role.equals("white") ? "black" : "white";
             state.applyMove(lastMove[0], lastMove[1], lastMove[2], lastMove[3], oppRole);
         }
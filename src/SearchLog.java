@@ -0,0 +1,242 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous agent log shared by all agents of the process. Search threads copy their records into
+ * a preallocated ring buffer and return at once; a background thread formats the records as key=value
+ * lines and writes them in batches, rotating the file when it gets too large. If the writer falls
+ * behind, records are dropped (and counted) instead of blocking the search.
+ *
+ * Configured with -Dqb.log (file, "none" to disable, default src/agent_log.txt), -Dqb.logMaxKB
+ * (size at which the file is rotated, default 1024) and -Dqb.logFiles (rotated files kept, default 3).
+ */
+public final class SearchLog {
+    private static final int CAPACITY = 1 << 12, MASK = CAPACITY - 1;
+    // Longest principal variation kept in a record
+    public static final int MAX_PV = 16;
+    private static final long IDLE_PARK_NANOS = 10_000_000L;
+
+    private static final String PATH = System.getProperty("qb.log", "src/agent_log.txt");
+    private static final long MAX_BYTES = Long.getLong("qb.logMaxKB", 1024) * 1024;
+    private static final int MAX_FILES = Integer.getInteger("qb.logFiles", 3);
+
+    private static SearchLog instance;
+
+    // Kinds of records
+    private static final int EVENT = 0, ITERATION = 1;
+
+    // One preallocated slot of the ring; published is set to sequence once the fields are written
+    private static final class Record {
+        volatile long published = -1;
+        long sequence;
+        int kind;
+        long timeMillis;
+        String agent, event, message;
+        int depth, score, pvLength, stride;
+        long nodes, nps, elapsedMs, ttProbes, ttHits;
+        final int[] pv = new int[MAX_PV];
+    }
+
+    private final Record[] ring = new Record[CAPACITY];
+    private final AtomicLong claimed = new AtomicLong();
+    // Next sequence the writer drains, only advanced by the writer thread
+    private volatile long drained;
+    private final AtomicLong dropped = new AtomicLong();
+    private long droppedReported;
+
+    private final Path path;
+    private Writer out;
+    private long fileBytes;
+    private final StringBuilder line = new StringBuilder(256);
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+    private final Thread writer;
+
+    // The process-wide log, or null if logging is disabled
+    public static synchronized SearchLog get() {
+        if (instance == null && !PATH.equals("none")) instance = new SearchLog(Paths.get(PATH));
+        return instance;
+    }
+
+    private SearchLog(Path path) {
+        this.path = path;
+        for (int i = 0; i < CAPACITY; i++) ring[i] = new Record();
+        writer = new Thread(this::drainLoop, "search-log");
+        writer.setDaemon(true);
+        writer.start();
+        // Write what is still buffered when the JVM exits
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            synchronized (this) {
+                drain();
+                closeFile();
+            }
+        }));
+    }
+
+    // Free-form event, e.g. a match start or the move played
+    public void event(String agent, String event, String message) {
+        Record r = claim();
+        if (r == null) return;
+        r.kind = EVENT;
+        r.agent = agent;
+        r.event = event;
+        r.message = message;
+        publish(r);
+    }
+
+    // A completed iterative deepening depth; pv holds packed moves of a board with the given stride
+    public void iteration(String agent, int depth, long nodes, long nps, int score, int[] pv, int pvLength, int stride,
+                          long elapsedMs, long ttProbes, long ttHits) {
+        Record r = claim();
+        if (r == null) return;
+        r.kind = ITERATION;
+        r.agent = agent;
+        r.event = "depth";
+        r.depth = depth;
+        r.nodes = nodes;
+        r.nps = nps;
+        r.score = score;
+        r.pvLength = Math.min(pvLength, MAX_PV);
+        System.arraycopy(pv, 0, r.pv, 0, r.pvLength);
+        r.stride = stride;
+        r.elapsedMs = elapsedMs;
+        r.ttProbes = ttProbes;
+        r.ttHits = ttHits;
+        publish(r);
+    }
+
+    // Records dropped because the ring was full
+    public long dropped() { return dropped.get(); }
+
+    // Reserves the next slot, or returns null if the writer has not caught up
+    private Record claim() {
+        long seq;
+        do {
+            seq = claimed.get();
+            if (seq - drained >= CAPACITY) {
+                dropped.incrementAndGet();
+                return null;
+            }
+        } while (!claimed.compareAndSet(seq, seq + 1));
+        Record r = ring[(int) seq & MASK];
+        r.sequence = seq;
+        r.timeMillis = System.currentTimeMillis();
+        return r;
+    }
+
+    private void publish(Record r) { r.published = r.sequence; }
+
+    private void drainLoop() {
+        while (true) {
+            boolean wrote;
+            synchronized (this) {
+                wrote = drain();
+            }
+            if (!wrote) LockSupport.parkNanos(IDLE_PARK_NANOS);
+        }
+    }
+
+    // Writes all published records in order and flushes once; returns whether there were any
+    private boolean drain() {
+        long seq = drained;
+        Record r = ring[(int) seq & MASK];
+        if (r.published != seq) return false;
+        try {
+            do {
+                format(r);
+                r.agent = r.event = r.message = null;
+                drained = ++seq;
+                write();
+                r = ring[(int) seq & MASK];
+            } while (r.published == seq);
+            long lost = dropped.get();
+            if (lost != droppedReported) {
+                line.setLength(0);
+                line.append(dateFormat.format(new Date())).append(" event=dropped records=").append(lost - droppedReported).append('\n');
+                droppedReported = lost;
+                write();
+            }
+            if (out != null) out.flush();
+        } catch (IOException e) {
+            // The search must not fail because of the log: skip what is buffered and retry with a new file
+            while (ring[(int) drained & MASK].published == drained) drained++;
+            closeFile();
+        }
+        return true;
+    }
+
+    private void format(Record r) {
+        line.setLength(0);
+        line.append(dateFormat.format(new Date(r.timeMillis))).append(" agent=").append(r.agent).append(" event=").append(r.event);
+        if (r.kind == ITERATION) {
+            line.append(" depth=").append(r.depth)
+                .append(" nodes=").append(r.nodes)
+                .append(" nps=").append(r.nps)
+                .append(" score=").append(r.score)
+                .append(" time_ms=").append(r.elapsedMs)
+                .append(" tt_hit_rate=");
+            long rate = r.ttProbes == 0 ? 0 : r.ttHits * 1000 / r.ttProbes;
+            line.append(rate / 1000).append('.').append((char) ('0' + rate / 100 % 10)).append((char) ('0' + rate / 10 % 10)).append((char) ('0' + rate % 10));
+            line.append(" pv=\"");
+            for (int i = 0; i < r.pvLength; i++) {
+                int from = BitboardState.moveFrom(r.pv[i]), to = BitboardState.moveTo(r.pv[i]);
+                if (i > 0) line.append(' ');
+                line.append(from % r.stride + 1).append(',').append(from / r.stride + 1).append('-')
+                    .append(to % r.stride + 1).append(',').append(to / r.stride + 1);
+            }
+            line.append('"');
+        } else if (r.message != null) {
+            line.append(" msg=\"").append(r.message.replace('"', '\'')).append('"');
+        }
+        line.append('\n');
+    }
+
+    private void write() throws IOException {
+        if (out == null) openFile();
+        out.append(line);
+        fileBytes += line.length();
+        if (fileBytes >= MAX_BYTES) {
+            closeFile();
+            rotate();
+        }
+    }
+
+    // agent_log.txt becomes agent_log.txt.1, which becomes agent_log.txt.2 and so on; the oldest is deleted
+    private void rotate() throws IOException {
+        if (MAX_FILES <= 0) {
+            Files.deleteIfExists(path);
+            return;
+        }
+        Files.deleteIfExists(rotated(MAX_FILES));
+        for (int i = MAX_FILES - 1; i >= 1; i--) {
+            if (Files.exists(rotated(i))) Files.move(rotated(i), rotated(i + 1), StandardCopyOption.REPLACE_EXISTING);
+        }
+        if (Files.exists(path)) Files.move(path, rotated(1), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private Path rotated(int index) { return path.resolveSibling(path.getFileName() + "." + index); }
+
+    private void openFile() throws IOException {
+        Path dir = path.toAbsolutePath().getParent();
+        if (dir != null) Files.createDirectories(dir);
+        fileBytes = Files.exists(path) ? Files.size(path) : 0;
+        out = new BufferedWriter(Files.newBufferedWriter(path, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND), 1 << 16);
+    }
+
+    private void closeFile() {
+        if (out == null) return;
+        try { out.close(); } catch (IOException e) { }
+        out = null;
+    }
+}
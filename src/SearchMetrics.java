@@ -0,0 +1,195 @@
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * Search statistics of the agents in the process for the /metrics route: running totals and the
+ * counters of each agent's last search, in the Prometheus text format or as JSON. The search threads
+ * count into plain fields of their own searcher, so the hot path never shares a cache line; only the
+ * sums of a finished search are published here, once per move.
+ */
+public final class SearchMetrics {
+    // Beta cutoffs are counted by the index of the move that caused them, the last bucket takes the rest
+    public static final int CUTOFF_BUCKETS = 8;
+
+    private static final SearchMetrics INSTANCE = new SearchMetrics();
+
+    public static SearchMetrics get() { return INSTANCE; }
+
+    // Counters of one search, filled in by the agent and handed to record()
+    public static final class Search {
+        public String agent;
+        public int step, threads, depth;
+        public long nodes, elapsedMs;
+        public long ttProbes, ttHits, ttCutoffs, ttCollisions;
+        public long evalCalls, evalNanos;
+        public final long[] cutoffs = new long[CUTOFF_BUCKETS];
+        // Nodes and milliseconds of each completed iteration, indexed by depth
+        public long[] depthNodes = new long[0], depthMs = new long[0];
+
+        // Geometric mean of the node count growth from one completed depth to the next
+        public double branchingFactor() {
+            int first = -1, last = -1;
+            for (int d = 1; d < depthNodes.length && d <= depth; d++) {
+                if (depthNodes[d] <= 0) continue;
+                if (first < 0) first = d;
+                last = d;
+            }
+            if (first < 0 || last == first) return 0;
+            return Math.pow((double) depthNodes[last] / depthNodes[first], 1.0 / (last - first));
+        }
+
+        // Share of the search threads' time spent in the evaluation (mobility and territory BFS)
+        public double evalTimeShare() {
+            return elapsedMs <= 0 ? 0 : Math.min(1, evalNanos / (elapsedMs * 1e6 * Math.max(1, threads)));
+        }
+
+        public double ttHitRate() { return ttProbes == 0 ? 0 : (double) ttHits / ttProbes; }
+    }
+
+    // Totals of all searches of an agent
+    private static final class Totals {
+        long searches, nodes, elapsedMs, ttProbes, ttHits, ttCutoffs, ttCollisions, evalCalls, evalNanos;
+        final long[] cutoffs = new long[CUTOFF_BUCKETS];
+    }
+
+    private final Map<String, Search> last = new TreeMap<>();
+    private final Map<String, Totals> totals = new TreeMap<>();
+
+    public synchronized void record(Search s) {
+        last.put(s.agent, s);
+        Totals t = totals.computeIfAbsent(s.agent, a -> new Totals());
+        t.searches++;
+        t.nodes += s.nodes;
+        t.elapsedMs += s.elapsedMs;
+        t.ttProbes += s.ttProbes;
+        t.ttHits += s.ttHits;
+        t.ttCutoffs += s.ttCutoffs;
+        t.ttCollisions += s.ttCollisions;
+        t.evalCalls += s.evalCalls;
+        t.evalNanos += s.evalNanos;
+        for (int i = 0; i < CUTOFF_BUCKETS; i++) t.cutoffs[i] += s.cutoffs[i];
+    }
+
+    // Prometheus text exposition format, version 0.0.4
+    public synchronized String toPrometheus() {
+        StringBuilder sb = new StringBuilder(4096);
+        counter(sb, "qb_searches_total", "Searches finished", t -> t.searches);
+        counter(sb, "qb_search_nodes_total", "Nodes searched", t -> t.nodes);
+        counter(sb, "qb_search_milliseconds_total", "Wall clock time spent searching", t -> t.elapsedMs);
+        counter(sb, "qb_tt_probes_total", "Transposition table lookups", t -> t.ttProbes);
+        counter(sb, "qb_tt_hits_total", "Transposition table lookups that found an entry", t -> t.ttHits);
+        counter(sb, "qb_tt_cutoffs_total", "Nodes answered by a transposition table bound", t -> t.ttCutoffs);
+        counter(sb, "qb_tt_collisions_total", "Entries whose move is not legal in the probed position", t -> t.ttCollisions);
+        counter(sb, "qb_eval_calls_total", "Static evaluations", t -> t.evalCalls);
+        counter(sb, "qb_eval_milliseconds_total", "Estimated thread time spent in the evaluation", t -> t.evalNanos / 1000000);
+        header(sb, "qb_beta_cutoffs_total", "Beta cutoffs by the index of the move that caused them", "counter");
+        for (Map.Entry<String, Totals> e : totals.entrySet()) {
+            for (int i = 0; i < CUTOFF_BUCKETS; i++) {
+                String index = i == CUTOFF_BUCKETS - 1 ? i + "+" : Integer.toString(i);
+                sample(sb, "qb_beta_cutoffs_total", e.getKey(), "index=\"" + index + "\"", Long.toString(e.getValue().cutoffs[i]));
+            }
+        }
+
+        gauge(sb, "qb_last_search_step", "Game step of the last search", s -> s.step);
+        gauge(sb, "qb_last_search_depth", "Deepest completed iteration of the last search", s -> s.depth);
+        gauge(sb, "qb_last_search_nodes", "Nodes of the last search", s -> s.nodes);
+        gauge(sb, "qb_last_search_seconds", "Duration of the last search", s -> s.elapsedMs / 1000.0);
+        gauge(sb, "qb_last_search_tt_hit_ratio", "Transposition table hit rate of the last search", Search::ttHitRate);
+        gauge(sb, "qb_last_search_branching_factor", "Effective branching factor of the last search", Search::branchingFactor);
+        gauge(sb, "qb_last_search_eval_time_ratio", "Share of the search time spent in the evaluation", Search::evalTimeShare);
+        header(sb, "qb_last_search_depth_seconds", "Time of each completed iteration of the last search", "gauge");
+        for (Search s : last.values()) {
+            for (int d = 1; d < s.depthMs.length && d <= s.depth; d++) {
+                if (s.depthNodes[d] > 0) sample(sb, "qb_last_search_depth_seconds", s.agent, "depth=\"" + d + "\"", number(s.depthMs[d] / 1000.0));
+            }
+        }
+        header(sb, "qb_last_search_depth_nodes", "Nodes of each completed iteration of the last search", "gauge");
+        for (Search s : last.values()) {
+            for (int d = 1; d < s.depthNodes.length && d <= s.depth; d++) {
+                if (s.depthNodes[d] > 0) sample(sb, "qb_last_search_depth_nodes", s.agent, "depth=\"" + d + "\"", Long.toString(s.depthNodes[d]));
+            }
+        }
+        return sb.toString();
+    }
+
+    public synchronized String toJson() {
+        StringBuilder sb = new StringBuilder(4096).append("{\"agents\":{");
+        boolean firstAgent = true;
+        for (Map.Entry<String, Totals> e : totals.entrySet()) {
+            Totals t = e.getValue();
+            Search s = last.get(e.getKey());
+            if (!firstAgent) sb.append(',');
+            firstAgent = false;
+            sb.append('"').append(e.getKey()).append("\":{\"totals\":{")
+              .append("\"searches\":").append(t.searches)
+              .append(",\"nodes\":").append(t.nodes)
+              .append(",\"elapsed_ms\":").append(t.elapsedMs)
+              .append(",\"tt_probes\":").append(t.ttProbes)
+              .append(",\"tt_hits\":").append(t.ttHits)
+              .append(",\"tt_cutoffs\":").append(t.ttCutoffs)
+              .append(",\"tt_collisions\":").append(t.ttCollisions)
+              .append(",\"eval_calls\":").append(t.evalCalls)
+              .append(",\"eval_ms\":").append(t.evalNanos / 1000000)
+              .append(",\"beta_cutoffs\":");
+            array(sb, t.cutoffs);
+            sb.append("},\"last_search\":{")
+              .append("\"step\":").append(s.step)
+              .append(",\"threads\":").append(s.threads)
+              .append(",\"depth\":").append(s.depth)
+              .append(",\"nodes\":").append(s.nodes)
+              .append(",\"elapsed_ms\":").append(s.elapsedMs)
+              .append(",\"nps\":").append(s.nodes * 1000 / Math.max(1, s.elapsedMs))
+              .append(",\"tt_probes\":").append(s.ttProbes)
+              .append(",\"tt_hits\":").append(s.ttHits)
+              .append(",\"tt_hit_rate\":").append(number(s.ttHitRate()))
+              .append(",\"tt_cutoffs\":").append(s.ttCutoffs)
+              .append(",\"tt_collisions\":").append(s.ttCollisions)
+              .append(",\"eval_calls\":").append(s.evalCalls)
+              .append(",\"eval_time_share\":").append(number(s.evalTimeShare()))
+              .append(",\"branching_factor\":").append(number(s.branchingFactor()))
+              .append(",\"beta_cutoffs\":");
+            array(sb, s.cutoffs);
+            sb.append(",\"depths\":[");
+            boolean firstDepth = true;
+            for (int d = 1; d < s.depthNodes.length && d <= s.depth; d++) {
+                if (s.depthNodes[d] <= 0) continue;
+                if (!firstDepth) sb.append(',');
+                firstDepth = false;
+                sb.append("{\"depth\":").append(d).append(",\"nodes\":").append(s.depthNodes[d]).append(",\"ms\":").append(s.depthMs[d]).append('}');
+            }
+            sb.append("]}}");
+        }
+        return sb.append("}}").toString();
+    }
+
+    private void counter(StringBuilder sb, String name, String help, ToLongFunction<Totals> value) {
+        header(sb, name, help, "counter");
+        for (Map.Entry<String, Totals> e : totals.entrySet()) sample(sb, name, e.getKey(), null, Long.toString(value.applyAsLong(e.getValue())));
+    }
+
+    private void gauge(StringBuilder sb, String name, String help, ToDoubleFunction<Search> value) {
+        header(sb, name, help, "gauge");
+        for (Search s : last.values()) sample(sb, name, s.agent, null, number(value.applyAsDouble(s)));
+    }
+
+    private static void header(StringBuilder sb, String name, String help, String type) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append("\n# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder sb, String name, String agent, String labels, String value) {
+        sb.append(name).append("{agent=\"").append(agent).append('"');
+        if (labels != null) sb.append(',').append(labels);
+        sb.append("} ").append(value).append('\n');
+    }
+
+    private static String number(double value) { return String.format(Locale.ROOT, "%.4f", value); }
+
+    private static void array(StringBuilder sb, long[] values) {
+        sb.append('[');
+        for (int i = 0; i < values.length; i++) sb.append(i > 0 ? "," : "").append(values[i]);
+        sb.append(']');
+    }
+}
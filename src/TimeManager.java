@@ -0,0 +1,115 @@
+/**
+ * Decides how long AlphaBetaAgent thinks about a move.
+ * <p>
+ * The hard limit is the playclock minus a safety margin sized from the measured
+ * request overhead (time spent in the HTTP front-end outside the agent). Within it,
+ * iterative deepening stops at a soft limit that shrinks while the best move is stable,
+ * grows when the best move changes or the score drops, and never starts an iteration
+ * the effective branching factor says cannot get through its first root moves.
+ */
+public class TimeManager {
+    // Margin used until the response overhead has been measured
+    private static final long DEFAULT_MARGIN_MS = 700;
+    // Allowance for the controller side and network, which we cannot observe
+    private static final long BASE_MARGIN_MS = 200;
+    private static final long MIN_HARD_LIMIT_MS = 100;
+    // Fraction of the hard limit an ordinary iteration may start in
+    private static final double SOFT_FRACTION = 0.7;
+    // Score loss (against the iteration two plies earlier) that counts as a drop
+    private static final int SCORE_DROP = 40;
+
+    private static volatile long overheadEstimateMs = -1;
+
+    private long startNanos;
+    private long hardLimitMs, softLimitMs;
+    private double branching;
+    private long lastIterationMs;
+    private int lastBest, stableIterations;
+    private double instability;
+    private final int[] scoreByDepth = new int[64];
+    private int lastDepth;
+    // Nodes a search may visit, 0 for no limit; a node limit replaces the soft time limits
+    private long nodeLimit;
+
+    // Records the time a request spent outside the agent, from socket accept to response flush
+    public static void observeResponseOverhead(long ms) {
+        long est = overheadEstimateMs;
+        // Rise immediately on a slow request, decay slowly afterwards
+        overheadEstimateMs = est < 0 ? ms : Math.max(ms, (est * 7 + ms) / 8);
+    }
+
+    public static long safetyMargin() {
+        long est = overheadEstimateMs;
+        return est < 0 ? DEFAULT_MARGIN_MS : BASE_MARGIN_MS + 3 * est;
+    }
+
+    // Starts the clock for a new move
+    public void startMove(int playclock) { startMove(playclock, System.nanoTime()); }
+
+    // Starts the clock for a new move whose request arrived at startNanos (System.nanoTime), so that
+    // the agent's work before the search, such as applying the last move, counts against the playclock
+    public void startMove(int playclock, long startNanos) { startBudget(playclock * 1000L - safetyMargin(), startNanos); }
+
+    // Starts the clock with an explicit hard limit, e.g. for precomputation during the startclock
+    public void startBudget(long budgetMs) { startBudget(budgetMs, System.nanoTime()); }
+
+    public void startBudget(long budgetMs, long startNanos) {
+        this.startNanos = startNanos;
+        hardLimitMs = Math.max(MIN_HARD_LIMIT_MS, budgetMs);
+        softLimitMs = (long) (hardLimitMs * SOFT_FRACTION);
+        branching = 6.0;
+        lastIterationMs = 0;
+        lastBest = -1;
+        stableIterations = 0;
+        instability = 1.0;
+        lastDepth = 0;
+    }
+
+    // Limits searches to a fixed number of nodes, e.g. for reproducible test matches
+    public void setNodeLimit(long nodes) { nodeLimit = Math.max(0, nodes); }
+
+    public long nodeLimit() { return nodeLimit; }
+
+    public boolean nodeLimitReached(long nodes) { return nodeLimit > 0 && nodes >= nodeLimit; }
+
+    public long elapsedMs() { return (System.nanoTime() - startNanos) / 1000000; }
+
+    public long hardLimitMs() { return hardLimitMs; }
+
+    public boolean hardLimitReached() { return elapsedMs() >= hardLimitMs; }
+
+    // Updates the branching factor and stability estimates after a completed iteration
+    public void iterationCompleted(int depth, int bestMove, int score, long iterationMs) {
+        if (lastIterationMs >= 5 && iterationMs > 0) {
+            double ratio = (double) iterationMs / lastIterationMs;
+            branching = Math.min(30.0, Math.max(1.5, 0.5 * branching + 0.5 * ratio));
+        }
+        lastIterationMs = iterationMs;
+
+        if (bestMove == lastBest) {
+            stableIterations++;
+        } else {
+            stableIterations = 0;
+            lastBest = bestMove;
+        }
+        if (depth < scoreByDepth.length) scoreByDepth[depth] = score;
+
+        // Scores swing between odd and even depths, so compare against the same parity
+        boolean dropped = depth >= 3 && depth - 2 <= lastDepth && scoreByDepth[depth - 2] - score > SCORE_DROP;
+        lastDepth = depth;
+
+        instability = stableIterations >= 3 ? 0.5 : stableIterations == 2 ? 0.75 : stableIterations == 0 && depth > 1 ? 1.3 : 1.0;
+        if (dropped) instability *= 1.5;
+    }
+
+    // Whether iterative deepening should stop instead of starting the next depth
+    public boolean shouldStop() {
+        long elapsed = elapsedMs();
+        if (nodeLimit > 0) return elapsed >= hardLimitMs;
+        if (elapsed >= Math.min(hardLimitMs, (long) (softLimitMs * instability))) return true;
+        // A partially searched depth still pays off once its first root moves complete,
+        // so only give up if not even half of the predicted iteration fits
+        long predicted = (long) (lastIterationMs * branching);
+        return elapsed + predicted / 2 > hardLimitMs;
+    }
+}
@@ -0,0 +1,143 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Lock-free transposition table shared by all search threads.
+ * <p>
+ * Entries are grouped in buckets of four, each entry being two longs: the hash XOR the data,
+ * and the data itself. A reader only accepts an entry whose two halves XOR back to its hash,
+ * so an entry torn by a concurrent writer is treated as a miss instead of a wrong score.
+ * <p>
+ * Data layout: value (16 bits, signed), depth (8), bound (2), generation (6), best move (14).
+ * <p>
+ * The table lives either in a long[] on the heap or in direct ByteBuffers off the heap, so
+ * multi-gigabyte tables stay out of GC scanning (size -XX:MaxDirectMemorySize accordingly).
+ */
+public class TranspositionTable {
+    public static final int NONE = 0, EXACT = 1, LOWER = 2, UPPER = 3;
+
+    private static final int BUCKET_ENTRIES = 4;
+    private static final int GENERATION_MASK = 0x3F;
+
+    private static final int BUCKET_BYTES = BUCKET_ENTRIES * 2 * 8;
+    // Off-heap tables are split into 1 GB direct buffers since a ByteBuffer is int-indexed
+    private static final int CHUNK_SHIFT = 27, CHUNK_LONGS = 1 << CHUNK_SHIFT;
+    private static final int ZEROS_BYTES = 1 << 20;
+
+    private final long[] table;
+    private final ByteBuffer[] chunks;
+    // Zeroed source for clearing the off-heap chunks with bulk copies
+    private final ByteBuffer zeros;
+    private final int bucketMask;
+    private int generation;
+
+    // numBuckets must be a power of two
+    public TranspositionTable(int numBuckets) { this(numBuckets, false); }
+
+    public TranspositionTable(int numBuckets, boolean offHeap) {
+        if (Integer.bitCount(numBuckets) != 1) throw new IllegalArgumentException("Bucket count must be a power of two: " + numBuckets);
+        this.bucketMask = numBuckets - 1;
+        long longs = (long) numBuckets * BUCKET_ENTRIES * 2;
+        if (longs > Integer.MAX_VALUE) throw new IllegalArgumentException("Transposition table too large: " + numBuckets + " buckets");
+        if (offHeap) {
+            this.table = null;
+            this.zeros = ByteBuffer.allocateDirect((int) Math.min(ZEROS_BYTES, longs * 8));
+            this.chunks = new ByteBuffer[(int) ((longs + CHUNK_LONGS - 1) >> CHUNK_SHIFT)];
+            for (int c = 0; c < chunks.length; c++) {
+                long size = Math.min(CHUNK_LONGS, longs - ((long) c << CHUNK_SHIFT));
+                chunks[c] = ByteBuffer.allocateDirect((int) (size * 8)).order(ByteOrder.nativeOrder());
+            }
+        } else {
+            this.table = new long[(int) longs];
+            this.chunks = null;
+            this.zeros = null;
+        }
+    }
+
+    // Largest power-of-two table that fits in the given number of megabytes
+    public static TranspositionTable ofMegabytes(int megabytes, boolean offHeap) {
+        long buckets = Math.max(1L, ((long) megabytes << 20) / BUCKET_BYTES);
+        return new TranspositionTable((int) Long.highestOneBit(Math.min(buckets, 1L << 27)), offHeap);
+    }
+
+    public long sizeInBytes() { return (long) (bucketMask + 1) * BUCKET_BYTES; }
+
+    // Wipes all entries, used at the start of a new match
+    public void clear() {
+        if (table != null) {
+            Arrays.fill(table, 0L);
+        } else {
+            for (ByteBuffer chunk : chunks) {
+                for (int i = 0; i < chunk.capacity(); i += zeros.capacity()) {
+                    chunk.put(i, zeros, 0, Math.min(zeros.capacity(), chunk.capacity() - i));
+                }
+            }
+        }
+        generation = 0;
+    }
+
+    private long get(int i) {
+        if (table != null) return table[i];
+        return chunks[i >>> CHUNK_SHIFT].getLong((i & (CHUNK_LONGS - 1)) << 3);
+    }
+
+    private void put(int i, long v) {
+        if (table != null) table[i] = v;
+        else chunks[i >>> CHUNK_SHIFT].putLong((i & (CHUNK_LONGS - 1)) << 3, v);
+    }
+
+    // Starts a new search: entries from earlier searches stay usable but age out first
+    public void newSearch() { generation = (generation + 1) & GENERATION_MASK; }
+
+    // Returns the data of the entry for hash, or 0 if there is none
+    public long probe(long hash) {
+        int base = bucketIndex(hash);
+        for (int i = base; i < base + BUCKET_ENTRIES * 2; i += 2) {
+            long data = get(i + 1);
+            if ((get(i) ^ data) == hash && data != 0) return data;
+        }
+        return 0L;
+    }
+
+    // Stores a search result, replacing the same position or else the shallowest/oldest entry of the bucket
+    public void store(long hash, int value, int depth, int bound, int move) {
+        int base = bucketIndex(hash);
+        int victim = base, victimScore = Integer.MAX_VALUE;
+        for (int i = base; i < base + BUCKET_ENTRIES * 2; i += 2) {
+            long old = get(i + 1);
+            if (old == 0 || (get(i) ^ old) == hash) {
+                if (old != 0) {
+                    // Keep a deeper result for the same position unless it is stale or we now have an exact score
+                    if (bound != EXACT && generation(old) == generation && depth(old) > depth + 2) return;
+                    if (move == 0) move = move(old);
+                }
+                victim = i;
+                break;
+            }
+            int age = (generation - generation(old)) & GENERATION_MASK;
+            int score = depth(old) - 8 * age;
+            if (score < victimScore) { victimScore = score; victim = i; }
+        }
+
+        long data = (value & 0xFFFFL)
+                  | ((long) Math.min(Math.max(depth, 0), 255) << 16)
+                  | ((long) bound << 24)
+                  | ((long) generation << 26)
+                  | ((long) move << 32);
+        put(victim + 1, data);
+        put(victim, hash ^ data);
+    }
+
+    public static int value(long data) { return (short) data; }
+    public static int depth(long data) { return (int) (data >>> 16) & 0xFF; }
+    public static int bound(long data) { return (int) (data >>> 24) & 0x3; }
+    public static int move(long data) { return (int) (data >>> 32) & 0x3FFF; }
+    private static int generation(long data) { return (int) (data >>> 26) & GENERATION_MASK; }
+
+    private int bucketIndex(long hash) {
+        // Mix the high bits in so boards differing only in a few squares spread across buckets
+        int bucket = (int) (hash ^ (hash >>> 32)) & bucketMask;
+        return bucket * BUCKET_ENTRIES * 2;
+    }
+}